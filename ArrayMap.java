@@ -0,0 +1,1030 @@
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.function.BiConsumer;
+
+
+/**
+ * A sorted map that keeps its keys in an ArraySet and its values in an array parallel to it, so the value
+ * of the i-th key is the i-th value. Lookups are a binary search of the ArraySet (O(log n)), the keys and
+ * the values can be accessed directly by their position, and no entry object is stored per mapping. That
+ * makes it much smaller than a TreeMap, which is useful for large lookup tables that are mostly read.
+ * Like in ArraySet, inserting or removing a mapping has to shift the following ones, so it takes O(n).
+ *
+ * Range views (headMap, subMap, tailMap and descendingMap) are copies, like the ones of ArraySet, so they
+ * do not change when this map does. It does not allow null keys. By default, the hash code of the keys is
+ * used to sort them, like in ArraySet.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class ArrayMap<K, V> implements NavigableMap<K, V> {
+
+    /** FIELDS */
+
+    // The keys of this map. Its search, growth and comparator are shared with this map
+    private final ArraySet<K> keys;
+    // values[i] is the value of the i-th key. It is as long as the internal array of keys
+    private Object[] values;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs an empty ArrayMap that sorts its keys by their hash codes
+     *
+     * */
+    public ArrayMap() {
+	this(new ArraySet<K>());
+    }
+
+    /**
+     * Constructs an empty ArrayMap with the specified capacity. Capacity must be greater than zero
+     *
+     * @param capacity the length added to the internal arrays when a resize is required
+     *
+     * */
+    public ArrayMap(int capacity) {
+	this(new ArraySet<K>(capacity));
+    }
+
+    /**
+     * Constructs an empty ArrayMap that sorts its keys with the given comparator
+     *
+     * @param comparator the comparator of the keys
+     *
+     * */
+    public ArrayMap(Comparator<Object> comparator) {
+	this(new ArraySet<K>(comparator));
+    }
+
+    /**
+     * Constructs an ArrayMap with all the mappings of the given map. If it is a SortedMap, its comparator is used
+     *
+     * @param other the map whose mappings are copied
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    public ArrayMap(Map<? extends K, ? extends V> other) {
+	this(other instanceof SortedMap<?, ?> && ((SortedMap<?, ?>) other).comparator() != null
+		? new ArraySet<K>((Comparator<Object>) ((SortedMap<?, ?>) other).comparator())
+		: new ArraySet<K>());
+	putAll(other);
+    }
+
+    private ArrayMap(ArraySet<K> keys) {
+	this.keys = keys;
+	values = new Object[keys.limit()];
+    }
+
+    @Override
+    public int size() {
+	return keys.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return keys.isEmpty();
+    }
+
+    /**
+     * Returns the position of the given key within this map
+     *
+     * @param key the key to look for
+     *
+     * @return the position of the key, or -(insertion point)-1 if it is not in this map
+     *
+     * */
+    public int indexOfKey(Object key) {
+	return keys.indexOf(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+	return keys.indexOf(key) >= 0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+
+	final int size = keys.size();
+
+	for(int i = 0;i < size;i++) {
+	    if(Objects.equals(values[i], value))
+		return true;
+	}
+
+	return false;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V get(Object key) {
+	final int index = keys.indexOf(key);
+	return index >= 0 ? (V) values[index] : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+	final int index = keys.indexOf(key);
+	return index >= 0 ? (V) values[index] : defaultValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public V put(K key, V value) {
+
+	if(key == null)
+	    throw new NullPointerException("Key cannot be null");
+
+	int index = keys.insert(key);
+
+	// The key was already in this map, so only its value changes
+	if(index < 0) {
+	    index = -index-1;
+	    final V old = (V) values[index];
+	    values[index] = value;
+	    return old;
+	}
+
+	// The keys may have been resized
+	if(values.length < keys.limit())
+	    values = Arrays.copyOf(values, keys.limit());
+
+	System.arraycopy(values, index, values, index+1, keys.size()-1-index);
+	values[index] = value;
+
+	return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> other) {
+	for(Map.Entry<? extends K, ? extends V> entry : other.entrySet()) {
+	    put(entry.getKey(), entry.getValue());
+	}
+    }
+
+    @Override
+    public V remove(Object key) {
+
+	final int index = keys.indexOf(key);
+
+	if(index < 0)
+	    return null;
+
+	return removeAt(index);
+    }
+
+    /**
+     * Removes the mapping at the given position
+     *
+     * @param index the position of the mapping
+     *
+     * @return the value of the removed mapping
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    public V removeAt(int index) {
+
+	final int size = keys.size();
+
+	if(index < 0 || index >= size)
+	    throw new ArrayIndexOutOfBoundsException(index + " is out of range [0,"+size+")");
+
+	final V old = (V) values[index];
+
+	keys.remove(index);
+	System.arraycopy(values, index+1, values, index, size-1-index);
+	values[size-1] = null;
+
+	return old;
+    }
+
+    @Override
+    public void clear() {
+	Arrays.fill(values, 0, keys.size(), null);
+	keys.clear();
+    }
+
+    /**
+     * Trims this map to the minimum size that it can hold all its mappings
+     *
+     * */
+    public void trim() {
+	keys.trim();
+	values = Arrays.copyOf(values, keys.limit());
+    }
+
+    /**
+     * Returns the key at the specified position
+     *
+     * @param index where the key is
+     *
+     * @return the key at given position
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    public K keyAt(int index) {
+	return keys.get(index);
+    }
+
+    /**
+     * Returns the value at the specified position
+     *
+     * @param index where the value is
+     *
+     * @return the value at given position
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    public V valueAt(int index) {
+	checkIndex(index);
+	return (V) values[index];
+    }
+
+    /**
+     * Replaces the value at the specified position
+     *
+     * @param index where the value is
+     * @param value the new value
+     *
+     * @return the old value
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    public V setValueAt(int index, V value) {
+	checkIndex(index);
+	final V old = (V) values[index];
+	values[index] = value;
+	return old;
+    }
+
+    /**
+     * Returns an immutable snapshot of the mapping at the specified position
+     *
+     * @param index where the mapping is
+     *
+     * @return the mapping at given position
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    public Map.Entry<K, V> entryAt(int index) {
+	checkIndex(index);
+	return new AbstractMap.SimpleImmutableEntry<>(keys.get(index), (V) values[index]);
+    }
+
+    private void checkIndex(int index) {
+	if(index < 0 || index >= keys.size())
+	    throw new ArrayIndexOutOfBoundsException(index + " is out of range [0,"+keys.size()+")");
+    }
+
+    /**
+     * Performs the given action for each mapping of this map, in ascending order of their keys.
+     * It does not allocate any entry
+     *
+     * @param action the action to perform on each mapping
+     *
+     * */
+    @SuppressWarnings("unchecked")
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+
+	final int size = keys.size();
+
+	for(int i = 0;i < size;i++) {
+	    action.accept(keys.get(i), (V) values[i]);
+	}
+    }
+
+    // Position of the lowest key greater than (or equal to, if inclusive) the given key. It may be size()
+    private int ceilingIndex(Object key, boolean inclusive) {
+	final int index = keys.indexOf(key);
+	if(index >= 0)
+	    return inclusive ? index : index+1;
+	return -index-1;
+    }
+
+    // Position of the highest key lower than (or equal to, if inclusive) the given key. It may be -1
+    private int floorIndex(Object key, boolean inclusive) {
+	final int index = keys.indexOf(key);
+	if(index >= 0)
+	    return inclusive ? index : index-1;
+	return -index-2;
+    }
+
+    // The mapping at the given position, or null if it is out of range
+    private Map.Entry<K, V> entryOrNull(int index) {
+	return index >= 0 && index < keys.size() ? entryAt(index) : null;
+    }
+
+    // The key at the given position, or null if it is out of range
+    private K keyOrNull(int index) {
+	return index >= 0 && index < keys.size() ? keys.get(index) : null;
+    }
+
+    @Override
+    public Map.Entry<K, V> lowerEntry(K key) {
+	return entryOrNull(floorIndex(key, false));
+    }
+
+    @Override
+    public K lowerKey(K key) {
+	return keyOrNull(floorIndex(key, false));
+    }
+
+    @Override
+    public Map.Entry<K, V> floorEntry(K key) {
+	return entryOrNull(floorIndex(key, true));
+    }
+
+    @Override
+    public K floorKey(K key) {
+	return keyOrNull(floorIndex(key, true));
+    }
+
+    @Override
+    public Map.Entry<K, V> ceilingEntry(K key) {
+	return entryOrNull(ceilingIndex(key, true));
+    }
+
+    @Override
+    public K ceilingKey(K key) {
+	return keyOrNull(ceilingIndex(key, true));
+    }
+
+    @Override
+    public Map.Entry<K, V> higherEntry(K key) {
+	return entryOrNull(ceilingIndex(key, false));
+    }
+
+    @Override
+    public K higherKey(K key) {
+	return keyOrNull(ceilingIndex(key, false));
+    }
+
+    @Override
+    public Map.Entry<K, V> firstEntry() {
+	return entryOrNull(0);
+    }
+
+    @Override
+    public Map.Entry<K, V> lastEntry() {
+	return entryOrNull(keys.size()-1);
+    }
+
+    @Override
+    public Map.Entry<K, V> pollFirstEntry() {
+	final Map.Entry<K, V> entry = firstEntry();
+	if(entry != null)
+	    removeAt(0);
+	return entry;
+    }
+
+    @Override
+    public Map.Entry<K, V> pollLastEntry() {
+	final Map.Entry<K, V> entry = lastEntry();
+	if(entry != null)
+	    removeAt(keys.size()-1);
+	return entry;
+    }
+
+    @Override
+    public K firstKey() {
+	if(keys.isEmpty())
+	    throw new NoSuchElementException("¡The map is empty!");
+	return keys.get(0);
+    }
+
+    @Override
+    public K lastKey() {
+	if(keys.isEmpty())
+	    throw new NoSuchElementException("¡The map is empty!");
+	return keys.get(keys.size()-1);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public Comparator<? super K> comparator() {
+	return (Comparator<? super K>) keys.comparator();
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public NavigableMap<K, V> descendingMap() {
+
+	final int size = keys.size();
+	final ArrayMap<K, V> map = new ArrayMap<>(((Comparator<Object>) keys.comparator()).reversed());
+
+	// Every key sorts after the previous one, so each put is an append
+	for(int i = size-1;i >= 0;i--) {
+	    map.put(keys.get(i), (V) values[i]);
+	}
+
+	return map;
+    }
+
+    @Override
+    public NavigableMap<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+
+	if(keys.comparator().compare(fromKey, toKey) > 0)
+	    throw new IllegalArgumentException("fromKey must be <= toKey");
+
+	return copyOfRange(ceilingIndex(fromKey, fromInclusive), floorIndex(toKey, toInclusive)+1);
+    }
+
+    @Override
+    public NavigableMap<K, V> headMap(K toKey, boolean inclusive) {
+	return copyOfRange(0, floorIndex(toKey, inclusive)+1);
+    }
+
+    @Override
+    public NavigableMap<K, V> tailMap(K fromKey, boolean inclusive) {
+	return copyOfRange(ceilingIndex(fromKey, inclusive), keys.size());
+    }
+
+    @Override
+    public SortedMap<K, V> subMap(K fromKey, K toKey) {
+	return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> headMap(K toKey) {
+	return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<K, V> tailMap(K fromKey) {
+	return tailMap(fromKey, true);
+    }
+
+    // A new map with the mappings in positions [from, to)
+    @SuppressWarnings("unchecked")
+    private ArrayMap<K, V> copyOfRange(int from, int to) {
+
+	final ArrayMap<K, V> map = new ArrayMap<>((Comparator<Object>) keys.comparator());
+
+	// Every key sorts after the previous one, so each put is an append
+	for(int i = from;i < to;i++) {
+	    map.put(keys.get(i), (V) values[i]);
+	}
+
+	return map;
+    }
+
+    @Override
+    public Set<K> keySet() {
+	return navigableKeySet();
+    }
+
+    @Override
+    public NavigableSet<K> navigableKeySet() {
+	return new KeySet();
+    }
+
+    @Override
+    public NavigableSet<K> descendingKeySet() {
+	return new DescendingKeySet();
+    }
+
+    @Override
+    public Collection<V> values() {
+	return new Values();
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+	return new EntrySet();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if(obj == this)
+	    return true;
+
+	if(!(obj instanceof Map<?, ?>))
+	    return false;
+
+	final Map<?, ?> other = (Map<?, ?>) obj;
+	final int size = keys.size();
+
+	if(other.size() != size)
+	    return false;
+
+	for(int i = 0;i < size;i++) {
+
+	    final Object value = other.get(keys.get(i));
+
+	    if(value == null ? values[i] != null || !other.containsKey(keys.get(i)) : !value.equals(values[i]))
+		return false;
+	}
+
+	return true;
+    }
+
+    @Override
+    public int hashCode() {
+
+	final int size = keys.size();
+	int result = 0;
+
+	// The sum of the hash codes of the entries, as the Map interface requires
+	for(int i = 0;i < size;i++) {
+	    result += keys.get(i).hashCode() ^ Objects.hashCode(values[i]);
+	}
+
+	return result;
+    }
+
+    @Override
+    public String toString() {
+
+	final int size = keys.size();
+	final StringBuilder builder = new StringBuilder("ArrayMap[");
+
+	builder.append("size="+size);
+	builder.append(",limit="+keys.limit());
+	builder.append("] => {");
+
+	for(int i = 0;i < size;i++) {
+	    if(i > 0)
+		builder.append(", ");
+	    builder.append(keys.get(i)).append('=').append(values[i]);
+	}
+
+	return builder.append('}').toString();
+    }
+
+    /**
+     * An iterator over the positions of the mappings, in ascending or descending order. Removing through it
+     * removes the mapping from the map
+     *
+     * */
+    private abstract class IndexIterator<T> implements Iterator<T> {
+
+	private final boolean descending;
+	private int index;
+	private int last = -1;
+	// Modification count of the keys that this iterator expects, to fail fast
+	private int expectedModCount = keys.modCount();
+
+	IndexIterator() {
+	    this(false);
+	}
+
+	IndexIterator(boolean descending) {
+	    this.descending = descending;
+	    index = descending ? keys.size()-1 : 0;
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return descending ? index >= 0 : index < keys.size();
+	}
+
+	@Override
+	public T next() {
+	    checkModCount();
+	    if(!hasNext())
+		throw new NoSuchElementException();
+	    last = descending ? index-- : index++;
+	    return at(last);
+	}
+
+	@Override
+	public void remove() {
+	    if(last < 0) {
+		throw new IllegalStateException("¡The iterator has no elements to remove!");
+	    }
+	    checkModCount();
+	    removeAt(last);
+	    // The following mappings shift one position down, but the preceding ones stay where they are
+	    if(!descending)
+		index = last;
+	    last = -1;
+	    expectedModCount = keys.modCount();
+	}
+
+	private void checkModCount() {
+	    if(keys.modCount() != expectedModCount)
+		throw new ConcurrentModificationException();
+	}
+
+	abstract T at(int index);
+
+    }
+
+    /**
+     * A view of the keys of this map. Its range views are copies, like the ones of the map
+     *
+     * */
+    private class KeySet extends AbstractSet<K> implements NavigableSet<K> {
+
+	@Override
+	public int size() {
+	    return keys.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+	    return containsKey(o);
+	}
+
+	@Override
+	public boolean remove(Object o) {
+	    final int index = keys.indexOf(o);
+	    if(index < 0)
+		return false;
+	    removeAt(index);
+	    return true;
+	}
+
+	@Override
+	public void clear() {
+	    ArrayMap.this.clear();
+	}
+
+	@Override
+	public Iterator<K> iterator() {
+	    return new IndexIterator<K>() {
+		@Override
+		K at(int index) {
+		    return keys.get(index);
+		}
+	    };
+	}
+
+	@Override
+	public Iterator<K> descendingIterator() {
+	    return new IndexIterator<K>(true) {
+		@Override
+		K at(int index) {
+		    return keys.get(index);
+		}
+	    };
+	}
+
+	@Override
+	public Comparator<? super K> comparator() {
+	    return ArrayMap.this.comparator();
+	}
+
+	@Override
+	public K first() {
+	    return firstKey();
+	}
+
+	@Override
+	public K last() {
+	    return lastKey();
+	}
+
+	@Override
+	public K lower(K e) {
+	    return lowerKey(e);
+	}
+
+	@Override
+	public K floor(K e) {
+	    return floorKey(e);
+	}
+
+	@Override
+	public K ceiling(K e) {
+	    return ceilingKey(e);
+	}
+
+	@Override
+	public K higher(K e) {
+	    return higherKey(e);
+	}
+
+	@Override
+	public K pollFirst() {
+	    final Map.Entry<K, V> entry = pollFirstEntry();
+	    return entry == null ? null : entry.getKey();
+	}
+
+	@Override
+	public K pollLast() {
+	    final Map.Entry<K, V> entry = pollLastEntry();
+	    return entry == null ? null : entry.getKey();
+	}
+
+	@Override
+	public NavigableSet<K> descendingSet() {
+	    return descendingKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+	    return subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+	    return headMap(toElement, inclusive).navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+	    return tailMap(fromElement, inclusive).navigableKeySet();
+	}
+
+	@Override
+	public SortedSet<K> subSet(K fromElement, K toElement) {
+	    return subSet(fromElement, true, toElement, false);
+	}
+
+	@Override
+	public SortedSet<K> headSet(K toElement) {
+	    return headSet(toElement, false);
+	}
+
+	@Override
+	public SortedSet<K> tailSet(K fromElement) {
+	    return tailSet(fromElement, true);
+	}
+
+    }
+
+    /**
+     * A view of the keys of this map in descending order. Like the ascending one, removing from it removes the
+     * mappings from the map, and its range views are copies
+     *
+     * */
+    private class DescendingKeySet extends KeySet {
+
+	@Override
+	public Iterator<K> iterator() {
+	    return super.descendingIterator();
+	}
+
+	@Override
+	public Iterator<K> descendingIterator() {
+	    return super.iterator();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public Comparator<? super K> comparator() {
+	    return ((Comparator<Object>) keys.comparator()).reversed();
+	}
+
+	@Override
+	public K first() {
+	    return lastKey();
+	}
+
+	@Override
+	public K last() {
+	    return firstKey();
+	}
+
+	@Override
+	public K lower(K e) {
+	    return higherKey(e);
+	}
+
+	@Override
+	public K floor(K e) {
+	    return ceilingKey(e);
+	}
+
+	@Override
+	public K ceiling(K e) {
+	    return floorKey(e);
+	}
+
+	@Override
+	public K higher(K e) {
+	    return lowerKey(e);
+	}
+
+	@Override
+	public K pollFirst() {
+	    return super.pollLast();
+	}
+
+	@Override
+	public K pollLast() {
+	    return super.pollFirst();
+	}
+
+	@Override
+	public NavigableSet<K> descendingSet() {
+	    return navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> subSet(K fromElement, boolean fromInclusive, K toElement, boolean toInclusive) {
+	    return descendingMap().subMap(fromElement, fromInclusive, toElement, toInclusive).navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> headSet(K toElement, boolean inclusive) {
+	    return descendingMap().headMap(toElement, inclusive).navigableKeySet();
+	}
+
+	@Override
+	public NavigableSet<K> tailSet(K fromElement, boolean inclusive) {
+	    return descendingMap().tailMap(fromElement, inclusive).navigableKeySet();
+	}
+
+    }
+
+    /**
+     * A view of the values of this map, in the order of their keys
+     *
+     * */
+    private class Values extends AbstractCollection<V> {
+
+	@Override
+	public int size() {
+	    return keys.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+	    return containsValue(o);
+	}
+
+	@Override
+	public void clear() {
+	    ArrayMap.this.clear();
+	}
+
+	@Override
+	public Iterator<V> iterator() {
+	    return new IndexIterator<V>() {
+		@Override
+		V at(int index) {
+		    return valueAt(index);
+		}
+	    };
+	}
+
+    }
+
+    /**
+     * A view of the mappings of this map. The entries are created while iterating and write their
+     * values through to the map until it is structurally modified. The entries of toArray are snapshots
+     *
+     * */
+    private class EntrySet extends AbstractSet<Map.Entry<K, V>> {
+
+	@Override
+	public int size() {
+	    return keys.size();
+	}
+
+	@Override
+	public boolean contains(Object o) {
+
+	    if(!(o instanceof Map.Entry<?, ?>))
+		return false;
+
+	    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+	    final int index = keys.indexOf(entry.getKey());
+
+	    return index >= 0 && Objects.equals(values[index], entry.getValue());
+	}
+
+	@Override
+	public boolean remove(Object o) {
+
+	    if(!contains(o))
+		return false;
+
+	    removeAt(keys.indexOf(((Map.Entry<?, ?>) o).getKey()));
+	    return true;
+	}
+
+	@Override
+	public void clear() {
+	    ArrayMap.this.clear();
+	}
+
+	@Override
+	public Iterator<Map.Entry<K, V>> iterator() {
+	    return new IndexIterator<Map.Entry<K, V>>() {
+		@Override
+		Map.Entry<K, V> at(int index) {
+		    return new Entry(index);
+		}
+	    };
+	}
+
+	// The entries of an array outlive the map, so they are immutable snapshots
+	@Override
+	public Object[] toArray() {
+
+	    final Object[] result = new Object[keys.size()];
+
+	    for(int i = 0;i < result.length;i++) {
+		result[i] = entryAt(i);
+	    }
+
+	    return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> T[] toArray(T[] a) {
+	    final Object[] result = toArray();
+	    return (T[]) Arrays.copyOf(result, result.length, a.getClass());
+	}
+
+    }
+
+    /**
+     * An entry that reads and writes the mapping at a position of this map. Once the map is structurally
+     * modified, the position may belong to another mapping, so the entry keeps the key and the last value
+     * it read, and setValue fails fast
+     *
+     * */
+    private class Entry implements Map.Entry<K, V> {
+
+	private final int index;
+	private final K key;
+	private V value;
+	// Modification count of the keys when this entry was created
+	private final int expectedModCount;
+
+	@SuppressWarnings("unchecked")
+	Entry(int index) {
+	    this.index = index;
+	    this.key = keys.get(index);
+	    this.value = (V) values[index];
+	    this.expectedModCount = keys.modCount();
+	}
+
+	@Override
+	public K getKey() {
+	    return key;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V getValue() {
+	    if(keys.modCount() == expectedModCount)
+		value = (V) values[index];
+	    return value;
+	}
+
+	@Override
+	public V setValue(V value) {
+	    if(keys.modCount() != expectedModCount)
+		throw new ConcurrentModificationException("The map has been modified since this entry was created");
+	    this.value = value;
+	    return setValueAt(index, value);
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+	    if(!(obj instanceof Map.Entry<?, ?>))
+		return false;
+
+	    final Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+
+	    return getKey().equals(other.getKey()) && Objects.equals(getValue(), other.getValue());
+	}
+
+	@Override
+	public int hashCode() {
+	    return getKey().hashCode() ^ Objects.hashCode(getValue());
+	}
+
+	@Override
+	public String toString() {
+	    return getKey() + "=" + getValue();
+	}
+
+    }
+
+}
@@ -1,8 +1,14 @@
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.SortedSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 
 /**
@@ -17,7 +23,7 @@ import java.util.SortedSet;
  * @version 17/02/2018
  * 
  */
-public class ArraySet<E> implements SortedSet<E> {
+public class ArraySet<E> implements SortedSet<E>, MemoryFootprint {
 
     /** FIELDS */
     
@@ -29,6 +35,24 @@ public class ArraySet<E> implements SortedSet<E> {
     private int size = 0;
     // Comparator that performs the sortering job in this set
     private Comparator<Object> comparator = new HashComparator();
+    // Maximum number of elements this set can hold. Zero means that the set is unbounded
+    private int maxSize = 0;
+    // Number of pending mutations that forces a merge. Zero means that mutations are applied immediately
+    private int flushThreshold = 0;
+    // Unsorted buffer of the insertions that have not been merged into the internal array yet
+    private Object[] pending;
+    // Number of elements in the pending buffer
+    private int pendingCount = 0;
+    // Marks the elements of the internal array that have been removed but not compacted yet
+    private BitSet tombstones;
+    // Number of marked elements in the internal array
+    private int tombstoneCount = 0;
+    // Optional filter that answers most of the lookups of elements that are not in this set
+    private CountingBloomFilter filter;
+    // Number of insertions and removals, used to tell whether this set has been idle
+    private int modCount = 0;
+    // Sum of the hash codes of the elements, as the Set interface defines the hash code of a set
+    private int hash = 0;
     
     /** END OF FIELDS */
     
@@ -80,13 +104,36 @@ public class ArraySet<E> implements SortedSet<E> {
     @Override
     public boolean add(E e) {
 	
+	if(maxSize > 0)
+	    return offer(e);
+	
+	if(flushThreshold > 0)
+	    return addDeferred(e);
+	
+	return insert(e) >= 0;
+    }
+    
+    /**
+     * Inserts an element in its sorted position and returns that position. If the element was already
+     * in this set, it returns -(index+1), where index is its position. It is only used by add and by ArrayMap,
+     * which keeps its values in an array parallel to the elements of this set, so this set must not be
+     * bounded nor deferred
+     * 
+     * @param e the element to insert
+     * 
+     * @return the position of e, or -(position+1) if it was already present
+     * 
+     * */
+    int insert(E e) {
+	
 	// Only resize when it is really needed
 	
 	if(size == 0) {
 	    if(size == data.length)
 		resize(capacity);
 	    data[size++] = e;
-	    return true;
+	    inserted(e);
+	    return 0;
 	}
 	
 	// Appends e to the end of this set
@@ -94,7 +141,8 @@ public class ArraySet<E> implements SortedSet<E> {
 	    if(size == data.length)
 		resize(capacity);
 	    data[size++] = e;
-	    return true;
+	    inserted(e);
+	    return size-1;
 	}
 	
 	// index at which e is within the set, or should be inserted
@@ -106,7 +154,7 @@ public class ArraySet<E> implements SortedSet<E> {
 	
 	    // e is already in this set
 	    if(index >= 0) {
-		return false; 
+		return -index-1; 
 	    }
 	
 	    // now index is the position where e have to be
@@ -127,6 +175,89 @@ public class ArraySet<E> implements SortedSet<E> {
 	}
 	
 	++size;
+	inserted(e);
+	
+	return index;
+    }
+    
+    /**
+     * Offers an element to this set. If the set is unbounded, this is the same as add. If it is bounded
+     * and full, the element is rejected with a single comparison when it does not sort before the last one.
+     * Otherwise it is inserted and the last element is evicted in the same shift, without resizing
+     * 
+     * @param e the element to offer
+     * 
+     * @return true if e is now in this set, false if it was rejected or already present
+     * 
+     * */
+    public boolean offer(E e) {
+	
+	if(maxSize == 0 || size < maxSize) {
+	    if(maxSize == 0)
+		return add(e);
+	    return addBounded(e);
+	}
+	
+	// e sorts after (or is equal to) the last element, so it does not make the cut
+	if(comparator.compare(e, data[size-1]) >= 0)
+	    return false;
+	
+	int index = indexOf(e);
+	
+	if(index >= 0)
+	    return false;
+	
+	index = -(index+1);
+	
+	removed(data[size-1]);
+	
+	// The last element falls off the end of the array
+	System.arraycopy(data, index, data, index+1, size-1-index);
+	data[index] = e;
+	inserted(e);
+	
+	return true;
+    }
+    
+    /**
+     * Offers all the elements of the given collection to this set
+     * 
+     * @param other the elements to offer
+     * 
+     * @return true if this set has changed after this method, false otherwise
+     * 
+     * @see #offer(Object)
+     * 
+     * */
+    public boolean offerAll(Collection<? extends E> other) {
+	boolean changed = false;
+	
+	for(E e : other) {
+	    changed |= offer(e);
+	}
+	
+	return changed;
+    }
+    
+    // Inserts e into a bounded set that still has room. The internal array is already maxSize long
+    private boolean addBounded(E e) {
+	
+	int index = size;
+	
+	if(size > 0 && comparator.compare(data[size-1], e) >= 0) {
+	    index = indexOf(e);
+	    if(index >= 0)
+		return false;
+	    index = -(index+1);
+	}
+	
+	if(size == data.length)
+	    data = Arrays.copyOf(data, maxSize);
+	
+	System.arraycopy(data, index, data, index+1, size-index);
+	data[index] = e;
+	++size;
+	inserted(e);
 	
 	return true;
     }
@@ -167,6 +298,21 @@ public class ArraySet<E> implements SortedSet<E> {
     public void clear() {
 	Arrays.fill(data, 0, size, null);
 	size = 0;
+	++modCount;
+	hash = 0;
+	
+	if(filter != null)
+	    filter.clear();
+	
+	if(pendingCount > 0) {
+	    Arrays.fill(pending, 0, pendingCount, null);
+	    pendingCount = 0;
+	}
+	
+	if(tombstoneCount > 0) {
+	    tombstones.clear();
+	    tombstoneCount = 0;
+	}
     }
     
     /**
@@ -176,11 +322,12 @@ public class ArraySet<E> implements SortedSet<E> {
      */
     public void free() {
 	clear();
-	data = new Object[capacity];
+	data = new Object[maxSize > 0 ? maxSize : capacity];
     }
     
     @Override
     public int size() {
+	settle();
 	return size;
     }
     
@@ -219,6 +366,305 @@ public class ArraySet<E> implements SortedSet<E> {
 	this.capacity = capacity;
     }
 
+    /**
+     * Returns the maximum number of elements of this ArraySet, or zero if it is unbounded
+     * 
+     * @return the maximum size of this ArraySet
+     * 
+     * */
+    public int maxSize() {
+	return maxSize;
+    }
+    
+    /**
+     * Bounds this ArraySet to keep only its maxSize first elements, so that it works as a top-K collection.
+     * The internal array is set to maxSize length and will not be resized again. If the set already holds more
+     * elements than maxSize, the last ones are discarded. A maxSize of zero makes this set unbounded again
+     * 
+     * @param maxSize the maximum number of elements, or zero for an unbounded set
+     * 
+     * @throws IllegalArgumentException if maxSize is negative
+     * 
+     * */
+    public void setMaxSize(int maxSize) {
+	if(maxSize < 0) {
+	    throw new IllegalArgumentException("Max size must be >= 0");
+	}
+	if(maxSize > 0 && flushThreshold > 0) {
+	    throw new IllegalStateException("A deferred ArraySet cannot be bounded");
+	}
+	
+	this.maxSize = maxSize;
+	
+	if(maxSize == 0)
+	    return;
+	
+	if(size > maxSize) {
+	    for(int i = maxSize;i < size;i++)
+		removed(data[i]);
+	    Arrays.fill(data, maxSize, size, null);
+	    size = maxSize;
+	}
+	
+	data = Arrays.copyOf(data, maxSize);
+    }
+
+    /**
+     * Returns the number of pending mutations that forces this ArraySet to merge them, or zero if
+     * mutations are applied immediately
+     * 
+     * @return the flush threshold of this ArraySet
+     * 
+     * */
+    public int flushThreshold() {
+	return flushThreshold;
+    }
+    
+    /**
+     * Sets this ArraySet in deferred mode. In this mode, add appends the element to an unsorted buffer and
+     * remove marks the element as a tombstone, so neither of them shifts the internal array. The buffer is
+     * sorted and merged and the tombstones are compacted in a single pass on the next read (contains, indexOf,
+     * get, size, iteration...), when the number of pending mutations reaches the threshold or when flush is called.
+     * A low threshold favours read latency and a high one favours ingest throughput.
+     * 
+     * While the set is deferred, add only checks the merged elements, so it may return true for an element that
+     * is already waiting in the buffer. The duplicate is discarded when the buffer is merged.
+     * 
+     * A threshold of zero applies all the pending mutations and makes the set immediate again
+     * 
+     * @param flushThreshold the number of pending mutations that forces a merge, or zero
+     * 
+     * @throws IllegalArgumentException if flushThreshold is negative
+     * @throws IllegalStateException if this set is bounded
+     * 
+     * */
+    public void setFlushThreshold(int flushThreshold) {
+	if(flushThreshold < 0) {
+	    throw new IllegalArgumentException("Flush threshold must be >= 0");
+	}
+	if(flushThreshold > 0 && maxSize > 0) {
+	    throw new IllegalStateException("A bounded ArraySet cannot be deferred");
+	}
+	
+	flush();
+	
+	this.flushThreshold = flushThreshold;
+	
+	if(flushThreshold == 0) {
+	    pending = null;
+	    tombstones = null;
+	} else {
+	    pending = new Object[initialPendingLength()];
+	    tombstones = new BitSet();
+	}
+    }
+    
+    /**
+     * Applies all the pending mutations of a deferred ArraySet. The pending insertions are sorted and merged
+     * into the internal array and the removed elements are compacted, all in one pass. It does nothing if there
+     * are not pending mutations
+     * 
+     * */
+    public void flush() {
+	
+	if(tombstoneCount > 0) {
+	    
+	    int w = tombstones.nextSetBit(0);
+	    
+	    for(int r = w+1;r < size;r++) {
+		if(!tombstones.get(r))
+		    data[w++] = data[r];
+	    }
+	    
+	    Arrays.fill(data, w, size, null);
+	    size = w;
+	    tombstones.clear();
+	    tombstoneCount = 0;
+	}
+	
+	if(pendingCount > 0) {
+	    
+	    Arrays.sort(pending, 0, pendingCount, comparator);
+	    
+	    // Discard the elements that were added more than once
+	    int n = 1;
+	    
+	    for(int i = 1;i < pendingCount;i++) {
+		if(comparator.compare(pending[i], pending[n-1]) != 0) {
+		    pending[n++] = pending[i];
+		} else {
+		    discarded(pending[i]);
+		}
+	    }
+	    
+	    if(size + n > data.length)
+		data = Arrays.copyOf(data, size + n + capacity);
+	    
+	    // Merge from the end so that every element is moved only once. The pending elements are never
+	    // in the internal array, because addDeferred checks it first
+	    int i = size-1;
+	    int j = n-1;
+	    
+	    for(int w = size+n-1;j >= 0;w--) {
+		if(i >= 0 && comparator.compare(data[i], pending[j]) > 0) {
+		    data[w] = data[i--];
+		} else {
+		    data[w] = pending[j--];
+		}
+	    }
+	    
+	    size += n;
+	    Arrays.fill(pending, 0, pendingCount, null);
+	    pendingCount = 0;
+	}
+	
+    }
+    
+    /**
+     * Attaches a counting Bloom filter to this ArraySet, so that most of the lookups of elements that are not
+     * in the set return without searching the internal array. The filter is maintained automatically on every
+     * add and remove, and it is rebuilt when it holds more elements than expected or after heavy deletion.
+     * 
+     * The filter works with the hash codes of the elements, so it can only be used when this set is sorted by
+     * the hash codes of its elements, as it is by default (or in reverse, after calling reverse)
+     * 
+     * @param falsePositiveRate the desired false positive rate of the filter, in range (0, 1)
+     * 
+     * @throws IllegalArgumentException if falsePositiveRate is out of range
+     * @throws IllegalStateException if this set is not sorted by the hash codes of its elements
+     * 
+     * */
+    public void enableFilter(double falsePositiveRate) {
+	if(!isHashOrder(comparator))
+	    throw new IllegalStateException("The filter can only be used with the hash code ordering");
+	filter = new CountingBloomFilter(0, falsePositiveRate);
+	rebuildFilter();
+    }
+    
+    /**
+     * Detaches the membership filter of this ArraySet, if any
+     * 
+     * */
+    public void disableFilter() {
+	filter = null;
+    }
+    
+    /**
+     * Returns the membership filter of this ArraySet, which may be used to check its saturation.
+     * It must not be modified.
+     * 
+     * @return the membership filter, or null if this set has not got any
+     * 
+     * */
+    public CountingBloomFilter filter() {
+	return filter;
+    }
+    
+    // Whether the comparator sorts the elements by their hash codes, so that the filter agrees with it
+    private static boolean isHashOrder(Comparator<Object> comparator) {
+	return comparator instanceof HashComparator || comparator.equals(Collections.reverseOrder(new HashComparator()));
+    }
+    
+    // Resizes the filter for twice the current size and adds all the elements again
+    private void rebuildFilter() {
+	
+	settle();
+	
+	filter.reset(Math.max(size, capacity) << 1);
+	
+	for(int i = 0;i < size;i++) {
+	    filter.add(data[i].hashCode());
+	}
+    }
+    
+    // Called every time an element is inserted into this set
+    private void inserted(Object e) {
+	++modCount;
+	hash += e.hashCode();
+	if(filter != null)
+	    filter.add(e.hashCode());
+    }
+    
+    // Called every time an element is removed from this set
+    private void removed(Object e) {
+	++modCount;
+	discarded(e);
+    }
+    
+    // Called when a repeated pending insertion is discarded. It was already counted as a modification when
+    // it was added, so applying the pending mutations is not a modification by itself
+    private void discarded(Object e) {
+	hash -= e.hashCode();
+	if(filter != null)
+	    filter.remove(e.hashCode());
+    }
+    
+    // Applies the pending mutations, if any, before a read
+    private void settle() {
+	if(pendingCount > 0 || tombstoneCount > 0)
+	    flush();
+    }
+    
+    private boolean addDeferred(E e) {
+	
+	final int index = search(e);
+	
+	if(index >= 0) {
+	    
+	    if(!tombstones.get(index))
+		return false;
+	    
+	    // e was removed but not compacted yet, so it just comes back to life
+	    tombstones.clear(index);
+	    --tombstoneCount;
+	    inserted(e);
+	    return true;
+	}
+	
+	if(pendingCount == pending.length)
+	    pending = Arrays.copyOf(pending, Math.min(flushThreshold, Math.max(capacity, pendingCount << 1)));
+	
+	pending[pendingCount++] = e;
+	inserted(e);
+	
+	if(pendingCount + tombstoneCount >= flushThreshold)
+	    flush();
+	
+	return true;
+    }
+    
+    private boolean removeDeferred(Object e) {
+	
+	final int index = search(e);
+	
+	if(index >= 0) {
+	    
+	    if(tombstones.get(index))
+		return false;
+	    
+	    tombstones.set(index);
+	    removed(data[index]);
+	    
+	    if(pendingCount + ++tombstoneCount >= flushThreshold)
+		flush();
+	    
+	    return true;
+	}
+	
+	boolean removed = false;
+	
+	for(int i = pendingCount-1;i >= 0;i--) {
+	    if(comparator.compare(pending[i], e) == 0) {
+		removed(pending[i]);
+		pending[i] = pending[--pendingCount];
+		pending[pendingCount] = null;
+		removed = true;
+	    }
+	}
+	
+	return removed;
+    }
+
     /**
      * Returns the index of the given object if it is present within the ArraySet. Otherwise, this method
      * will give the position + 1 at which this object should be if it were inside the set as a negative number
@@ -231,6 +677,15 @@ public class ArraySet<E> implements SortedSet<E> {
      * 
      * */
     public int indexOf(Object e) {
+	settle();
+	return search(e);
+    }
+    
+    // indexOf without applying the pending mutations first
+    private int search(Object e) {
+	
+	if(size == 0)
+	    return -1;
 	    
 	if(comparator.compare(e, data[size-1]) > 0) {
 		return -size-1;
@@ -270,8 +725,38 @@ public class ArraySet<E> implements SortedSet<E> {
 	return -low-1;
     }
 
+    /**
+     * Returns the number of elements of this ArraySet in range [from, to). It only takes 2 binary searches,
+     * instead of testing every element like getAll does
+     * 
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     * 
+     * @return the number of elements in the range
+     * 
+     * */
+    public int countInRange(E from, E to) {
+	
+	settle();
+	
+	final int low = search(from);
+	final int high = search(to);
+	
+	return Math.max(0, (high >= 0 ? high : -(high+1)) - (low >= 0 ? low : -(low+1)));
+    }
+
     @Override
     public boolean contains(Object obj) {
+	
+	if(filter != null) {
+	    
+	    if(filter.needsRebuild())
+		rebuildFilter();
+	    
+	    if(!filter.mightContain(obj.hashCode()))
+		return false;
+	}
+	
 	return indexOf(obj) >= 0;
     }
 
@@ -285,14 +770,149 @@ public class ArraySet<E> implements SortedSet<E> {
 	
 	return true;
     }
+    
+    /**
+     * Checks a batch of keys at once. The keys are sorted first (unless they already are) and then all of them
+     * are answered in a single forward galloping pass over the internal array, which is much faster than
+     * calling contains for each one of them
+     * 
+     * @param keys the keys to look up
+     * @param out the bit i of out is set if keys[i] is in this set, and cleared otherwise
+     * 
+     * @return true if all the keys are in this set, false otherwise
+     * 
+     * */
+    public boolean containsAll(Object[] keys, BitSet out) {
+	
+	final int[] indices = new int[keys.length];
+	
+	indexOfAll(keys, indices);
+	
+	out.clear(0, keys.length);
+	
+	boolean all = true;
+	
+	for(int i = 0;i < keys.length;i++) {
+	    if(indices[i] >= 0) {
+		out.set(i);
+	    } else {
+		all = false;
+	    }
+	}
+	
+	return all;
+    }
+    
+    /**
+     * Computes indexOf for a batch of keys at once. The keys are sorted first (unless they already are) and then
+     * all of them are answered in a single forward galloping pass over the internal array
+     * 
+     * @param keys the keys to look up
+     * @param out out[i] is set to indexOf(keys[i])
+     * 
+     * @throws IllegalArgumentException if out is shorter than keys
+     * 
+     * @see #indexOf(Object)
+     * 
+     * */
+    public void indexOfAll(Object[] keys, int[] out) {
+	
+	if(out.length < keys.length)
+	    throw new IllegalArgumentException("out must have at least "+keys.length+" elements");
+	
+	settle();
+	
+	final int[] order = sortedOrder(keys);
+	
+	int low = 0;
+	
+	for(int i = 0;i < keys.length;i++) {
+	    
+	    final int k = order == null ? i : order[i];
+	    final int index = gallop(keys[k], low);
+	    
+	    out[k] = index;
+	    
+	    // The next key is not lower than this one, so it cannot be before this position
+	    low = index >= 0 ? index : -(index+1);
+	}
+	
+    }
+    
+    // Searches e in [from, size) doubling the step until it is passed, and then binary searching the last step
+    private int gallop(Object e, int from) {
+	
+	int low = from;
+	int high = from;
+	int step = 1;
+	
+	while(high < size && comparator.compare(data[high], e) < 0) {
+	    low = high + 1;
+	    high += step;
+	    step <<= 1;
+	}
+	
+	return binarySearch(low, Math.min(high, size-1), e);
+    }
+    
+    // Returns the positions of keys in ascending order, or null if keys is already sorted
+    private int[] sortedOrder(Object[] keys) {
+	
+	int i = 1;
+	
+	while(i < keys.length && comparator.compare(keys[i-1], keys[i]) <= 0)
+	    i++;
+	
+	if(i >= keys.length)
+	    return null;
+	
+	final int[] order = new int[keys.length];
+	
+	for(i = 0;i < order.length;i++)
+	    order[i] = i;
+	
+	mergeSort(keys, order, new int[order.length], 0, order.length);
+	
+	return order;
+    }
+    
+    private void mergeSort(Object[] keys, int[] order, int[] tmp, int from, int to) {
+	
+	if(to - from < 2)
+	    return;
+	
+	final int mid = (from+to) >>> 1;
+	
+	mergeSort(keys, order, tmp, from, mid);
+	mergeSort(keys, order, tmp, mid, to);
+	
+	// Both halves are already in order
+	if(comparator.compare(keys[order[mid-1]], keys[order[mid]]) <= 0)
+	    return;
+	
+	System.arraycopy(order, from, tmp, from, to-from);
+	
+	int i = from;
+	int j = mid;
+	
+	for(int k = from;k < to;k++) {
+	    if(j >= to || (i < mid && comparator.compare(keys[tmp[i]], keys[tmp[j]]) <= 0)) {
+		order[k] = tmp[i++];
+	    } else {
+		order[k] = tmp[j++];
+	    }
+	}
+    }
 
     @Override
     public boolean isEmpty() {
+	settle();
 	return size == 0;
     }
 
     @Override
     public Iterator<E> iterator() {
+	settle();
 	return new ForwardIterator();
     }
     
@@ -303,6 +923,7 @@ public class ArraySet<E> implements SortedSet<E> {
      * 
      * */
     public Iterator<E> reversedIterator() {
+	settle();
 	return new BackwardIterator();
     }
     
@@ -319,6 +940,8 @@ public class ArraySet<E> implements SortedSet<E> {
      */
     public E get(int i) {
 	
+	settle();
+	
 	if(i < 0 || i >= size)
 	    throw new ArrayIndexOutOfBoundsException(i + " is out of range [0,"+size+")");
 	
@@ -341,10 +964,64 @@ public class ArraySet<E> implements SortedSet<E> {
 	remove(i);
 	return element;
     }
+    
+    /**
+     * Performs the given action for each element between the given positions, in ascending order.
+     * Unlike iterating a subSet, it does not copy the range nor allocate an iterator
+     * 
+     * @param from the position of the first element, inclusive
+     * @param to the position of the last element, exclusive
+     * @param action the action to perform on each element
+     * 
+     * @throws ArrayIndexOutOfBoundsException if the range is out of [0, size()] or from > to
+     * 
+     * */
+    @SuppressWarnings("unchecked")
+    public void forEach(int from, int to, Consumer<? super E> action) {
+	
+	settle();
+	
+	if(from < 0 || to > size || from > to)
+	    throw new ArrayIndexOutOfBoundsException("["+from+","+to+") is out of range [0,"+size+"]");
+	
+	final Object[] data = this.data;
+	
+	for(int i = from;i < to;i++) {
+	    action.accept((E) data[i]);
+	}
+    }
+    
+    /**
+     * Performs the given action for each element between the given positions, in descending order
+     * 
+     * @param from the position of the first element, inclusive
+     * @param to the position of the last element, exclusive
+     * @param action the action to perform on each element
+     * 
+     * @throws ArrayIndexOutOfBoundsException if the range is out of [0, size()] or from > to
+     * 
+     * */
+    @SuppressWarnings("unchecked")
+    public void forEachDescending(int from, int to, Consumer<? super E> action) {
+	
+	settle();
+	
+	if(from < 0 || to > size || from > to)
+	    throw new ArrayIndexOutOfBoundsException("["+from+","+to+") is out of range [0,"+size+"]");
+	
+	final Object[] data = this.data;
+	
+	for(int i = to-1;i >= from;i--) {
+	    action.accept((E) data[i]);
+	}
+    }
 
     @Override
     public boolean remove(Object e) {
 	
+	if(flushThreshold > 0)
+	    return removeDeferred(e);
+	
 	if(size == 0)
 	    return false;
 
@@ -376,10 +1053,14 @@ public class ArraySet<E> implements SortedSet<E> {
     *
     */ 
     public void remove(final int index) {
+	
+	settle();
 	    
 	if(index < 0 || index > size)
 		throw new ArrayIndexOutOfBoundsException(index+" is out of range [0, "+size+"]");
 	
+	removed(data[index]);
+	
 	Object tmp = data[size-1];
 	data[size-1] = null;
 	
@@ -428,6 +1109,7 @@ public class ArraySet<E> implements SortedSet<E> {
      *  
      * */
     public E getAny(Predicate<E> condition) {
+	settle();
 	for(int i = 0;i < size;i++) {
 	    final E e = (E) data[i];
 	    if(condition.test(e))
@@ -445,6 +1127,7 @@ public class ArraySet<E> implements SortedSet<E> {
      *  
      * */
     public E getLast(Predicate<E> condition) {
+	settle();
 	for(int i = size-1;i >= 0;i--) {
 	    final E e = (E) data[i];
 	    if(condition.test(e))
@@ -464,6 +1147,8 @@ public class ArraySet<E> implements SortedSet<E> {
      * */
     public ArraySet<E> getAll(Predicate<E> condition) {
 	
+	settle();
+	
 	ArraySet<E> set = new ArraySet<>(size);
 	
 	for(int i = 0;i < size;i++) {
@@ -477,6 +1162,58 @@ public class ArraySet<E> implements SortedSet<E> {
 	return set;
 	
     }
+    
+    /**
+     * Returns a new ArraySet with the elements in range [from, to). The range is found with 2 binary searches,
+     * and its elements are copied without comparing them again
+     * 
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     * 
+     * @return an ArraySet with the elements of the range
+     * 
+     * */
+    public ArraySet<E> getAll(E from, E to) {
+	return getAll(from, to, e -> true);
+    }
+    
+    /**
+     * Returns a new ArraySet with the elements in range [from, to) that satisfy the given condition. Unlike
+     * getAll with a range predicate, only the elements of the range are tested
+     * 
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     * @param condition the condition the elements must satisfy
+     * 
+     * @return an ArraySet with the elements that satisfy the condition
+     * 
+     * */
+    @SuppressWarnings("unchecked")
+    public ArraySet<E> getAll(E from, E to, Predicate<E> condition) {
+	
+	settle();
+	
+	final int low = search(from);
+	final int high = search(to);
+	final int begin = low >= 0 ? low : -(low+1);
+	final int end = high >= 0 ? high : -(high+1);
+	
+	final ArraySet<E> set = new ArraySet<>(Math.max(1, end - begin));
+	set.comparator = comparator;
+	
+	// The elements are already sorted, so they are appended
+	for(int i = begin;i < end;i++) {
+	    final E e = (E) data[i];
+	    if(condition.test(e)) {
+		set.data[set.size++] = e;
+		set.inserted(e);
+	    }
+	}
+	
+	set.trim();
+	
+	return set;
+    }
     /**
      * Only retain those elements that meet the condition passed as argument. In other words, remove all elements
      * that do not meet the condition  
@@ -488,6 +1225,8 @@ public class ArraySet<E> implements SortedSet<E> {
      * */
     public boolean retainIf(Predicate<E> condition) {
 	
+	settle();
+	
 	boolean changed = false;
 	
 	for(int i = 0;i < size;i++) {
@@ -502,21 +1241,104 @@ public class ArraySet<E> implements SortedSet<E> {
     }
     
     /**
-     * Trims the ArraySet to the minimum size that it can hold all its elements, so that size = limit
+     * Trims the ArraySet to the minimum size that it can hold all its elements, so that size = limit.
+     * A bounded set is never trimmed below its max size, so that it does not have to be resized again.
+     * The buffers of the deferred mode go back to their initial size, and if the membership filter was
+     * sized for many more elements than this set holds, it is shrunk too. Trimming, and applying the pending
+     * mutations before it, does not change the elements, so it is not counted as a modification by modCount
      * 
      * */
+    @Override
     public void trim() {
-	data = Arrays.copyOf(data,size);
+	settle();
+	data = Arrays.copyOf(data, Math.max(size, maxSize));
+	if(pending != null && pending.length > initialPendingLength())
+	    pending = new Object[initialPendingLength()];
+	if(tombstones != null && tombstones.size() > 64)
+	    tombstones = new BitSet();
+	if(filterExcess() > 0)
+	    rebuildFilter();
+    }
+    
+    /**
+     * Returns the estimated number of bytes of heap retained by this ArraySet: the object itself, its internal
+     * array, the buffers of the deferred mode and the membership filter. The elements are not included
+     * 
+     * @return the retained bytes
+     * 
+     * */
+    @Override
+    public long retainedBytes() {
+	
+	long bytes = MemoryBudget.objectBytes(5, 8*4) + MemoryBudget.arrayBytes(data.length, MemoryBudget.REFERENCE);
+	
+	if(pending != null)
+	    bytes += MemoryBudget.arrayBytes(pending.length, MemoryBudget.REFERENCE);
+	if(tombstones != null)
+	    bytes += MemoryBudget.objectBytes(1, 5) + MemoryBudget.arrayBytes(tombstones.size() >>> 6, 8);
+	if(filter != null)
+	    bytes += filter.retainedBytes();
+	
+	return bytes;
+    }
+    
+    /**
+     * Returns the estimated number of bytes that trim would give back: the unused part of the internal array
+     * (the slots up to the max size of a bounded set are never reclaimable), the growth of the buffers of the
+     * deferred mode, and the excess of the membership filter if it is oversized
+     * 
+     * @return the reclaimable bytes
+     * 
+     * */
+    @Override
+    public long reclaimableBytes() {
+	
+	long slots = Math.max(0, data.length - Math.max(size + pendingCount, maxSize));
+	
+	if(pending != null)
+	    slots += Math.max(0, pending.length - initialPendingLength());
+	
+	long bytes = slots * MemoryBudget.REFERENCE;
+	
+	if(tombstones != null && tombstones.size() > 64)
+	    bytes += MemoryBudget.arrayBytes(tombstones.size() >>> 6, 8) - MemoryBudget.arrayBytes(1, 8);
+	
+	return bytes + filterExcess();
+    }
+    
+    // Length of the pending buffer when the deferred mode is enabled. It grows up to the flush threshold
+    private int initialPendingLength() {
+	return Math.min(flushThreshold, capacity);
+    }
+    
+    @Override
+    public int modCount() {
+	return modCount;
+    }
+    
+    // Bytes the filter would give back if it was rebuilt for the current size. A filter is only considered
+    // oversized when rebuilding it would at least halve it, so that trimming does not rebuild it over and over
+    private long filterExcess() {
+	
+	if(filter == null)
+	    return 0;
+	
+	final long current = filter.retainedBytes();
+	final long rebuilt = CountingBloomFilter.retainedBytes(Math.max(size+pendingCount, capacity) << 1, filter.falsePositiveRate());
+	
+	return rebuilt <= current >>> 1 ? current - rebuilt : 0;
     }
 
     @Override
     public Object[] toArray() {
+	settle();
 	return Arrays.copyOf(data, size);
     }
 
     @SuppressWarnings("unchecked")
     @Override
     public <T> T[] toArray(T[] a) {
+	settle();
 	return (T[]) Arrays.copyOfRange(data, 0, size, a.getClass());
     }
 
@@ -530,12 +1352,14 @@ public class ArraySet<E> implements SortedSet<E> {
      * 
      * */
     public void reverse() {
+	settle();
 	comparator = comparator.reversed();
 	Arrays.sort(data, 0, size, comparator);
     }
     
     /**
      * Sets a new comparator for this ArraySet, and then sort its elements by its criteria.
+     * If the new comparator does not sort the elements by their hash codes, the membership filter is detached
      * 
      * @param {@link Comparator} the new comparator
      * 
@@ -545,12 +1369,16 @@ public class ArraySet<E> implements SortedSet<E> {
     public void setComparator(Comparator<? super Object> comparator) {
 	if(comparator == null)
 	    throw new NullPointerException("Comparator cannot be null!");
+	settle();
 	this.comparator = comparator;
 	Arrays.sort(data, 0, size, comparator);
+	if(filter != null && !isHashOrder(comparator))
+	    filter = null;
     }
 
     @Override
     public E first() {
+	settle();
 	if(size == 0)
 	    return null;
 	return (E) data[0];
@@ -572,6 +1400,7 @@ public class ArraySet<E> implements SortedSet<E> {
     @SuppressWarnings("unchecked")
     @Override
     public E last() {
+	settle();
 	if(size == 0)
 	    return null;
 	return (E) data[size-1];
@@ -607,47 +1436,81 @@ public class ArraySet<E> implements SortedSet<E> {
 	return set;
     }
     
+    /**
+     * Compares this set with another one following the contract of the Set interface. Sets with a different
+     * size or hash code are rejected immediately. If the other set is an ArraySet with the same comparator,
+     * both internal arrays are compared side by side, otherwise every element of the other set is looked up
+     * 
+     * */
     @Override
     public boolean equals(Object obj) {
 	
-	if(!(obj instanceof SortedSet<?>)) {
-	    return false;
-	}
-	
-	SortedSet<?> other = (SortedSet<?>) obj;
+	if(obj == this)
+	    return true;
 	
-	if(other.size() != size)
+	if(!(obj instanceof Set<?>)) {
 	    return false;
+	}
 	
-	final Iterator<?> it = other.iterator();
+	settle();
 	
-	for(int i = 0;i < size;i++) {
-	    if(!data[i].equals(it.next())) {
+	if(obj instanceof ArraySet<?>) {
+	    
+	    final ArraySet<?> other = (ArraySet<?>) obj;
+	    
+	    other.settle();
+	    
+	    if(other.size != size || other.hash != hash)
 		return false;
+	    
+	    if(comparator.equals(other.comparator)) {
+		
+		for(int i = 0;i < size;i++) {
+		    if(!data[i].equals(other.data[i]))
+			return false;
+		}
+		
+		return true;
 	    }
+	    
+	} else if(obj instanceof LinkedSet<?>) {
+	    
+	    if(((LinkedSet<?>) obj).size() != size || obj.hashCode() != hash)
+		return false;
 	}
 	
-	return true;
+	final Set<?> other = (Set<?>) obj;
+	
+	if(other.size() != size)
+	    return false;
+	
+	return containsAll(other);
     }
     
+    /**
+     * Returns the hash code of this set, which is the sum of the hash codes of its elements, as the
+     * Set interface defines it. It is kept up to date on every insertion and removal, so it takes O(1)
+     * 
+     * */
     @Override
     public int hashCode() {
-	final int prime = 83;
-	int result = 1;
-	
-	for(int i = 0;i < size;i++) {
-	    result *= prime * data[i].hashCode();
-	}
-	return result;
+	settle();
+	return hash;
     }
     
     @Override
     public String toString() {
+	settle();
+	
 	final StringBuilder builder = new StringBuilder("ArraySet[");
 	
 	builder.append("size="+size);
 	builder.append(",capacity="+capacity);
 	builder.append(",limit="+limit());
+	if(maxSize > 0)
+	    builder.append(",maxSize="+maxSize);
+	if(flushThreshold > 0)
+	    builder.append(",flushThreshold="+flushThreshold);
 	builder.append("] => ");
 	builder.append(Arrays.toString(toArray()));
 	
@@ -656,14 +1519,189 @@ public class ArraySet<E> implements SortedSet<E> {
     }
     
     // Comparator that compare 2 objects comparing their hashcodes
-    private static class HashComparator implements Comparator<Object> {
+    static class HashComparator implements Comparator<Object> {
 	@Override
 	public int compare(Object o1, Object o2) {
 	    return Integer.compare(o1.hashCode(), o2.hashCode());
 	}
+	
+	// All of them sort the same way, so two sets with different instances can still be compared side by side
+	@Override
+	public boolean equals(Object obj) {
+	    return obj instanceof HashComparator;
+	}
+	
+	@Override
+	public int hashCode() {
+	    return HashComparator.class.hashCode();
+	}
     }
     
    
+    /**
+     * A reusable cursor over the elements of an ArraySet. Unlike an iterator, it can seek to any element, move
+     * in both directions and be reset to another set, so a single cursor can be used for any number of scans
+     * without allocating anything.
+     * 
+     * A cursor reads the array of its set directly. If the set is modified, the cursor must be reset or
+     * repositioned with seek, first or last before using it again
+     * 
+     * */
+    public static class Cursor<E> {
+	
+	private ArraySet<E> set;
+	private int index = -1;
+	
+	/**
+	 * Constructs a cursor that is not bound to any set. It must be reset before using it
+	 * 
+	 * */
+	public Cursor() {
+	    
+	}
+	
+	/**
+	 * Constructs a cursor positioned at the first element of the given set
+	 * 
+	 * @param set the set to iterate
+	 * 
+	 * */
+	public Cursor(ArraySet<E> set) {
+	    reset(set);
+	}
+	
+	/**
+	 * Binds this cursor to the given set and positions it at its first element
+	 * 
+	 * @param set the set to iterate
+	 * 
+	 * @return this cursor
+	 * 
+	 * */
+	public Cursor<E> reset(ArraySet<E> set) {
+	    if(set == null)
+		throw new NullPointerException("Set cannot be null");
+	    this.set = set;
+	    set.settle();
+	    index = 0;
+	    return this;
+	}
+	
+	/**
+	 * Positions this cursor at the given element or, if it is not in the set, at the first element
+	 * greater than it. If there is no such element, the cursor is left past the end
+	 * 
+	 * @param key the element to look for
+	 * 
+	 * @return true if the element is in the set, false otherwise
+	 * 
+	 * */
+	public boolean seek(Object key) {
+	    final int i = set.indexOf(key);
+	    index = i >= 0 ? i : -i-1;
+	    return i >= 0;
+	}
+	
+	/**
+	 * Positions this cursor at the given index
+	 * 
+	 * @param index the position, in range [-1, size()]. -1 and size() are before the first and past the last element
+	 * 
+	 * @throws ArrayIndexOutOfBoundsException if the index is out of range
+	 * 
+	 * */
+	public void seekIndex(int index) {
+	    set.settle();
+	    if(index < -1 || index > set.size)
+		throw new ArrayIndexOutOfBoundsException(index+" is out of range [-1,"+set.size+"]");
+	    this.index = index;
+	}
+	
+	/**
+	 * Positions this cursor at the first element of the set
+	 * 
+	 * @return true if the set is not empty, false otherwise
+	 * 
+	 * */
+	public boolean first() {
+	    set.settle();
+	    index = 0;
+	    return set.size > 0;
+	}
+	
+	/**
+	 * Positions this cursor at the last element of the set
+	 * 
+	 * @return true if the set is not empty, false otherwise
+	 * 
+	 * */
+	public boolean last() {
+	    set.settle();
+	    index = set.size-1;
+	    return set.size > 0;
+	}
+	
+	/**
+	 * Moves this cursor to the next element
+	 * 
+	 * @return true if the cursor is at an element after moving, false if it is past the last one
+	 * 
+	 * */
+	public boolean next() {
+	    if(index < set.size)
+		++index;
+	    return index < set.size;
+	}
+	
+	/**
+	 * Moves this cursor to the previous element
+	 * 
+	 * @return true if the cursor is at an element after moving, false if it is before the first one
+	 * 
+	 * */
+	public boolean previous() {
+	    if(index >= 0)
+		--index;
+	    return index >= 0;
+	}
+	
+	/**
+	 * Returns whether this cursor is positioned at an element
+	 * 
+	 * @return true if there is a current element, false otherwise
+	 * 
+	 * */
+	public boolean isValid() {
+	    return set != null && index >= 0 && index < set.size;
+	}
+	
+	/**
+	 * Returns the element this cursor is positioned at
+	 * 
+	 * @return the current element
+	 * 
+	 * @throws NoSuchElementException if the cursor is not positioned at an element
+	 * 
+	 * */
+	@SuppressWarnings("unchecked")
+	public E current() {
+	    if(!isValid())
+		throw new NoSuchElementException("¡The cursor is not positioned at an element!");
+	    return (E) set.data[index];
+	}
+	
+	/**
+	 * Returns the position of this cursor
+	 * 
+	 * @return the index of the current element, -1 if before the first or size() if past the last one
+	 * 
+	 * */
+	public int index() {
+	    return index;
+	}
+	
+    }
+    
     private class ForwardIterator implements Iterator<E> {
 	
 	private int index = 0;
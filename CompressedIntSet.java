@@ -0,0 +1,1667 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.function.IntConsumer;
+import java.util.function.IntPredicate;
+
+
+/**
+ * A sorted set of ints that compresses its elements. The range of ints is split into chunks of 2^16 values, and
+ * the elements of each chunk are stored in the container that takes less memory for them: a sorted array of chars
+ * for sparse chunks, a bitmap of 8KB for dense chunks or a list of runs for chunks made of consecutive values.
+ * This way, a set usually takes much less than the 4 bytes per element of an int[], let alone the ~20 bytes per
+ * element of an ArraySet of Integers.
+ *
+ * It provides the same ordered methods as ArraySet (first, last, direct access to its elements, indexOf and
+ * range views) with primitive versions that do not box the elements, and the intersection, union and difference
+ * of 2 sets (and, or, andNot) work container by container instead of element by element.
+ * The elements are sorted in their natural order.
+ *
+ * The last block of the binary search of the array containers can be counted with the Vector API. It is an
+ * incubator module, so that code is in vector/VectorBlockCounter.java, which is compiled apart from the rest with
+ * javac --add-modules jdk.incubator.vector. It is only used if that class is in the classpath and the JVM is
+ * started with --add-modules jdk.incubator.vector. Otherwise, a scalar loop counts the block.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class CompressedIntSet implements SortedSet<Integer> {
+
+    /** FIELDS */
+
+    // Maximum number of elements of an array container. Over it, a bitmap takes less memory
+    private static final int MAX_ARRAY_SIZE = 4096;
+    // Number of longs of a bitmap container
+    private static final int BITMAP_WORDS = 1024;
+    // Number of elements at which the binary search of an array container switches to a linear count
+    private static final int BLOCK = 16;
+    // Counter of the last block of the binary search with the Vector API, or null if it is not available
+    private static final BlockCounter VECTOR_COUNTER = loadVectorCounter();
+
+    // High 16 bits of the elements of each chunk, with the sign bit flipped so that they sort as chars
+    private char[] keys = new char[4];
+    // Low 16 bits of the elements of each chunk
+    private Container[] containers = new Container[4];
+    // Number of chunks. Empty chunks are always removed
+    private int chunks = 0;
+    // Number of elements in this set
+    private int size = 0;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs an empty CompressedIntSet
+     *
+     * */
+    public CompressedIntSet() {
+
+    }
+
+    /**
+     * Returns a CompressedIntSet with all the given values, with its containers already optimized
+     *
+     * */
+    public CompressedIntSet(final int... values) {
+	for(int value : values) {
+	    add(value);
+	}
+	runOptimize();
+    }
+
+    /**
+     * Returns a CompressedIntSet with all the elements of the given collection, with its containers already optimized
+     *
+     * */
+    public CompressedIntSet(final Collection<? extends Integer> other) {
+	addAll(other);
+	runOptimize();
+    }
+
+    /**
+     * Adds a value to this set
+     *
+     * @param value the value to add
+     *
+     * @return true if the value was not in this set, false otherwise
+     *
+     * */
+    public boolean add(int value) {
+
+	final char key = highBits(value);
+	int chunk = chunkOf(key);
+
+	if(chunk < 0) {
+	    chunk = -(chunk+1);
+	    insertChunk(chunk, key, new ArrayContainer(4));
+	}
+
+	final Container container = containers[chunk];
+	final int cardinality = container.cardinality();
+
+	containers[chunk] = container.add((char) value);
+
+	if(containers[chunk].cardinality() == cardinality)
+	    return false;
+
+	size++;
+	return true;
+    }
+
+    /**
+     * Removes a value from this set
+     *
+     * @param value the value to remove
+     *
+     * @return true if the value was in this set, false otherwise
+     *
+     * */
+    public boolean removeValue(int value) {
+
+	final int chunk = chunkOf(highBits(value));
+
+	if(chunk < 0)
+	    return false;
+
+	final Container container = containers[chunk];
+	final int cardinality = container.cardinality();
+
+	containers[chunk] = container.remove((char) value);
+
+	if(containers[chunk].cardinality() == cardinality)
+	    return false;
+
+	if(containers[chunk].cardinality() == 0)
+	    removeChunk(chunk);
+
+	size--;
+
+	return true;
+    }
+
+    /**
+     * Returns whether the value is in this set
+     *
+     * @param value the value in question
+     *
+     * @return true if the value is in this set, false otherwise
+     *
+     * */
+    public boolean contains(int value) {
+	final int chunk = chunkOf(highBits(value));
+	return chunk >= 0 && containers[chunk].contains((char) value);
+    }
+
+    /**
+     * Returns the index of the given value if it is present within the set. Otherwise, this method
+     * will give the position + 1 at which this value should be if it were inside the set as a negative number,
+     * like ArraySet does
+     *
+     * @param value the value in question
+     *
+     * @return the index of the value, or the position at which it should be as a negative number
+     *
+     * */
+    public int indexOf(int value) {
+
+	final char key = highBits(value);
+	int index = 0;
+	int chunk = 0;
+
+	for(;chunk < chunks && keys[chunk] < key;chunk++) {
+	    index += containers[chunk].cardinality();
+	}
+
+	if(chunk == chunks || keys[chunk] != key)
+	    return -index-1;
+
+	final Container container = containers[chunk];
+
+	index += container.rank((char) value);
+
+	return container.contains((char) value) ? index : -index-1;
+    }
+
+    /**
+     * Returns the element at the specified position
+     *
+     * @param index where the element is
+     *
+     * @return the element at given position
+     *
+     * @throws <code> ArrayIndexOutOfBoundException </code> if the position is out of range
+     *
+     */
+    public int get(int index) {
+
+	if(index < 0 || index >= size)
+	    throw new ArrayIndexOutOfBoundsException(index + " is out of range [0,"+size+")");
+
+	int chunk = 0;
+
+	while(index >= containers[chunk].cardinality()) {
+	    index -= containers[chunk++].cardinality();
+	}
+
+	return value(keys[chunk], containers[chunk].select(index));
+    }
+
+    /**
+     * Returns the lowest element of this set
+     *
+     * @return the first element
+     *
+     * @throws NoSuchElementException if this set is empty
+     *
+     * */
+    public int firstInt() {
+	if(size == 0)
+	    throw new NoSuchElementException("The set is empty");
+	return value(keys[0], containers[0].next(0));
+    }
+
+    /**
+     * Returns the highest element of this set
+     *
+     * @return the last element
+     *
+     * @throws NoSuchElementException if this set is empty
+     *
+     * */
+    public int lastInt() {
+	if(size == 0)
+	    throw new NoSuchElementException("The set is empty");
+	return value(keys[chunks-1], containers[chunks-1].previous(0xFFFF));
+    }
+
+    /**
+     * Returns the number of elements of this set in range [from, to), without creating any set. Whole chunks
+     * are counted by their cardinality, and partial ones by a search or 64 elements at a time
+     *
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     *
+     * @return the number of elements in the range
+     *
+     * @throws IllegalArgumentException if from is greater than to
+     *
+     * */
+    public int countInRange(int from, int to) {
+
+	if(from > to)
+	    throw new IllegalArgumentException(from + " is greater than " + to);
+
+	if(from == to)
+	    return 0;
+
+	final char fromKey = highBits(from);
+	final char lastKey = highBits(to-1);
+
+	int chunk = chunkOf(fromKey);
+
+	if(chunk < 0)
+	    chunk = -(chunk+1);
+
+	int count = 0;
+
+	for(;chunk < chunks && keys[chunk] <= lastKey;chunk++) {
+
+	    final int low = keys[chunk] == fromKey ? (char) from : 0;
+	    final int high = keys[chunk] == lastKey ? (char) (to-1) : 0xFFFF;
+
+	    if(low == 0 && high == 0xFFFF) {
+		count += containers[chunk].cardinality();
+	    } else {
+		count += containers[chunk].countInRange(low, high);
+	    }
+	}
+
+	return count;
+    }
+
+    /**
+     * Returns a new set with the elements of this set in range [from, to)
+     *
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     *
+     * @return a set with the elements of the range
+     *
+     * @throws IllegalArgumentException if from is greater than to
+     *
+     * */
+    public CompressedIntSet range(int from, int to) {
+
+	if(from > to)
+	    throw new IllegalArgumentException(from + " is greater than " + to);
+
+	final CompressedIntSet set = new CompressedIntSet();
+
+	if(from == to)
+	    return set;
+
+	final char fromKey = highBits(from);
+	final char lastKey = highBits(to-1);
+
+	int chunk = chunkOf(fromKey);
+
+	if(chunk < 0)
+	    chunk = -(chunk+1);
+
+	for(;chunk < chunks && keys[chunk] <= lastKey;chunk++) {
+
+	    final char key = keys[chunk];
+	    final int low = key == fromKey ? (char) from : 0;
+	    final int high = key == lastKey ? (char) (to-1) : 0xFFFF;
+
+	    final Container container = low == 0 && high == 0xFFFF
+		    ? containers[chunk].copy()
+		    : and(containers[chunk], RunContainer.range(low, high));
+
+	    set.appendChunk(key, container);
+	}
+
+	return set;
+    }
+
+    /**
+     * Performs the given action for each element of this set in range [from, to), in ascending order.
+     * Only the chunks of the range are visited, and bitmap chunks skip 64 absent elements at a time
+     *
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     * @param action the action to perform on each element
+     *
+     * @throws IllegalArgumentException if from is greater than to
+     *
+     * */
+    public void forEachInRange(int from, int to, IntConsumer action) {
+
+	if(from > to)
+	    throw new IllegalArgumentException(from + " is greater than " + to);
+
+	if(from == to)
+	    return;
+
+	final char fromKey = highBits(from);
+	final char lastKey = highBits(to-1);
+
+	int chunk = chunkOf(fromKey);
+
+	if(chunk < 0)
+	    chunk = -(chunk+1);
+
+	for(;chunk < chunks && keys[chunk] <= lastKey;chunk++) {
+
+	    final int low = keys[chunk] == fromKey ? (char) from : 0;
+	    final int high = keys[chunk] == lastKey ? (char) (to-1) : 0xFFFF;
+
+	    containers[chunk].forEach(low, high, value(keys[chunk], 0), action);
+	}
+    }
+
+    /**
+     * Returns a new set with the elements of this set in range [from, to) that satisfy the given condition.
+     * Unlike testing every element, only the elements of the range are tested
+     *
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     * @param condition the condition the elements must satisfy
+     *
+     * @return a set with the elements that satisfy the condition
+     *
+     * @throws IllegalArgumentException if from is greater than to
+     *
+     * */
+    public CompressedIntSet getAll(int from, int to, IntPredicate condition) {
+
+	final CompressedIntSet set = new CompressedIntSet();
+
+	forEachInRange(from, to, x -> {
+	    if(condition.test(x))
+		set.add(x);
+	});
+
+	return set;
+    }
+
+    /**
+     * Returns a new set with the elements that are both in this set and in other
+     *
+     * @param other the other set
+     *
+     * @return the intersection of both sets
+     *
+     * */
+    public CompressedIntSet and(CompressedIntSet other) {
+
+	final CompressedIntSet set = new CompressedIntSet();
+
+	for(int i = 0, j = 0;i < chunks && j < other.chunks;) {
+	    if(keys[i] < other.keys[j]) {
+		i++;
+	    } else if(keys[i] > other.keys[j]) {
+		j++;
+	    } else {
+		set.appendChunk(keys[i], and(containers[i++], other.containers[j++]));
+	    }
+	}
+
+	return set;
+    }
+
+    /**
+     * Returns a new set with the elements that are in this set, in other or in both
+     *
+     * @param other the other set
+     *
+     * @return the union of both sets
+     *
+     * */
+    public CompressedIntSet or(CompressedIntSet other) {
+
+	final CompressedIntSet set = new CompressedIntSet();
+
+	int i = 0;
+	int j = 0;
+
+	while(i < chunks || j < other.chunks) {
+	    if(j == other.chunks || (i < chunks && keys[i] < other.keys[j])) {
+		set.appendChunk(keys[i], containers[i++].copy());
+	    } else if(i == chunks || keys[i] > other.keys[j]) {
+		set.appendChunk(other.keys[j], other.containers[j++].copy());
+	    } else {
+		set.appendChunk(keys[i], or(containers[i++], other.containers[j++]));
+	    }
+	}
+
+	return set;
+    }
+
+    /**
+     * Returns a new set with the elements that are in this set but not in other
+     *
+     * @param other the other set
+     *
+     * @return the difference of both sets
+     *
+     * */
+    public CompressedIntSet andNot(CompressedIntSet other) {
+
+	final CompressedIntSet set = new CompressedIntSet();
+
+	for(int i = 0, j = 0;i < chunks;) {
+	    if(j == other.chunks || keys[i] < other.keys[j]) {
+		set.appendChunk(keys[i], containers[i++].copy());
+	    } else if(keys[i] > other.keys[j]) {
+		j++;
+	    } else {
+		set.appendChunk(keys[i], andNot(containers[i++], other.containers[j++]));
+	    }
+	}
+
+	return set;
+    }
+
+    /**
+     * Converts every container to the representation that takes less memory for its elements, including runs.
+     * It is worth calling it after adding many consecutive values
+     *
+     * */
+    public void runOptimize() {
+	for(int i = 0;i < chunks;i++) {
+	    containers[i] = optimize(containers[i]);
+	}
+    }
+
+    /**
+     * Returns an estimation of the number of bytes of memory taken by this set
+     *
+     * @return the size in bytes of this set
+     *
+     * */
+    public long sizeInBytes() {
+
+	long bytes = 32 + 16 + 2L * keys.length + 16 + 4L * containers.length;
+
+	for(int i = 0;i < chunks;i++) {
+	    bytes += containers[i].sizeInBytes();
+	}
+
+	return bytes;
+    }
+
+    /**
+     * Trims the arrays of this set to the minimum size that can hold its chunks
+     *
+     * */
+    public void trim() {
+	keys = Arrays.copyOf(keys, chunks);
+	containers = Arrays.copyOf(containers, chunks);
+	runOptimize();
+    }
+
+    @Override
+    public int size() {
+	return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return size == 0;
+    }
+
+    @Override
+    public boolean add(Integer e) {
+	return add(e.intValue());
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends Integer> other) {
+
+	if(other instanceof CompressedIntSet) {
+	    final int oldSize = size;
+	    copyFrom(or((CompressedIntSet) other));
+	    return size != oldSize;
+	}
+
+	boolean changed = false;
+
+	for(Integer e : other) {
+	    changed |= add(e.intValue());
+	}
+
+	return changed;
+    }
+
+    @Override
+    public boolean contains(Object obj) {
+	return obj instanceof Integer && contains(((Integer) obj).intValue());
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> other) {
+
+	if(other instanceof CompressedIntSet)
+	    return ((CompressedIntSet) other).andNot(this).isEmpty();
+
+	for(Object obj : other) {
+	    if(!contains(obj))
+		return false;
+	}
+
+	return true;
+    }
+
+    @Override
+    public boolean remove(Object obj) {
+	return obj instanceof Integer && removeValue(((Integer) obj).intValue());
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> other) {
+
+	if(other instanceof CompressedIntSet) {
+	    final int oldSize = size;
+	    copyFrom(andNot((CompressedIntSet) other));
+	    return size != oldSize;
+	}
+
+	boolean changed = false;
+
+	for(Object obj : other) {
+	    changed |= remove(obj);
+	}
+
+	return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> other) {
+
+	final int oldSize = size;
+
+	if(other instanceof CompressedIntSet) {
+	    copyFrom(and((CompressedIntSet) other));
+	    return size != oldSize;
+	}
+
+	final CompressedIntSet retained = new CompressedIntSet();
+
+	for(PrimitiveIterator.OfInt it = iterator();it.hasNext();) {
+	    final int value = it.nextInt();
+	    if(other.contains(value))
+		retained.add(value);
+	}
+
+	copyFrom(retained);
+
+	return size != oldSize;
+    }
+
+    @Override
+    public void clear() {
+	Arrays.fill(containers, 0, chunks, null);
+	chunks = 0;
+	size = 0;
+    }
+
+    @Override
+    public PrimitiveIterator.OfInt iterator() {
+	return new ForwardIterator();
+    }
+
+    /**
+     * Returns an iterator that iterates this set in reversed order
+     *
+     * @return a reverse iterator over the set
+     *
+     * */
+    public PrimitiveIterator.OfInt reversedIterator() {
+	return new BackwardIterator();
+    }
+
+    @Override
+    public Comparator<? super Integer> comparator() {
+	return null;
+    }
+
+    @Override
+    public Integer first() {
+	if(size == 0)
+	    return null;
+	return firstInt();
+    }
+
+    @Override
+    public Integer last() {
+	if(size == 0)
+	    return null;
+	return lastInt();
+    }
+
+    @Override
+    public CompressedIntSet headSet(Integer toElement) {
+	return range(Integer.MIN_VALUE, toElement);
+    }
+
+    @Override
+    public CompressedIntSet subSet(Integer fromElement, Integer toElement) {
+	return range(fromElement, toElement);
+    }
+
+    @Override
+    public CompressedIntSet tailSet(Integer fromElement) {
+
+	final CompressedIntSet set = range(fromElement, Integer.MAX_VALUE);
+
+	if(contains(Integer.MAX_VALUE))
+	    set.add(Integer.MAX_VALUE);
+
+	return set;
+    }
+
+    /**
+     * Returns all the elements of this set in an int array, in ascending order
+     *
+     * @return an array with all the elements
+     *
+     * */
+    public int[] toIntArray() {
+
+	final int[] result = new int[size];
+
+	int i = 0;
+
+	for(PrimitiveIterator.OfInt it = iterator();it.hasNext();) {
+	    result[i++] = it.nextInt();
+	}
+
+	return result;
+    }
+
+    @Override
+    public Object[] toArray() {
+
+	final Object[] result = new Object[size];
+
+	int i = 0;
+
+	for(PrimitiveIterator.OfInt it = iterator();it.hasNext();) {
+	    result[i++] = it.nextInt();
+	}
+
+	return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+	return (T[]) Arrays.copyOf(toArray(), size, a.getClass());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if(obj == this)
+	    return true;
+
+	if(obj instanceof CompressedIntSet) {
+	    final CompressedIntSet other = (CompressedIntSet) obj;
+	    return other.size == size && andNot(other).isEmpty();
+	}
+
+	if(!(obj instanceof Set<?>))
+	    return false;
+
+	final Set<?> other = (Set<?>) obj;
+
+	return other.size() == size && containsAll(other);
+    }
+
+    @Override
+    public int hashCode() {
+
+	int result = 0;
+
+	for(PrimitiveIterator.OfInt it = iterator();it.hasNext();) {
+	    result += it.nextInt();
+	}
+
+	return result;
+    }
+
+    @Override
+    public String toString() {
+	final StringBuilder builder = new StringBuilder("CompressedIntSet[");
+
+	builder.append("size="+size);
+	builder.append(",chunks="+chunks);
+	builder.append(",bytes="+sizeInBytes());
+	builder.append("] => ");
+	builder.append(Arrays.toString(toIntArray()));
+
+	return builder.toString();
+    }
+
+    // Chunk of the given key, or -(insertion point)-1 if there is not such chunk
+    private int chunkOf(char key) {
+	return Arrays.binarySearch(keys, 0, chunks, key);
+    }
+
+    private void insertChunk(int chunk, char key, Container container) {
+
+	if(chunks == keys.length) {
+	    keys = Arrays.copyOf(keys, Math.max(4, chunks << 1));
+	    containers = Arrays.copyOf(containers, Math.max(4, chunks << 1));
+	}
+
+	System.arraycopy(keys, chunk, keys, chunk+1, chunks-chunk);
+	System.arraycopy(containers, chunk, containers, chunk+1, chunks-chunk);
+
+	keys[chunk] = key;
+	containers[chunk] = container;
+	chunks++;
+    }
+
+    private void removeChunk(int chunk) {
+	System.arraycopy(keys, chunk+1, keys, chunk, chunks-chunk-1);
+	System.arraycopy(containers, chunk+1, containers, chunk, chunks-chunk-1);
+	containers[--chunks] = null;
+    }
+
+    // Adds a chunk after all the others, unless it is empty
+    private void appendChunk(char key, Container container) {
+	if(container.cardinality() > 0) {
+	    insertChunk(chunks, key, container);
+	    size += container.cardinality();
+	}
+    }
+
+    private void copyFrom(CompressedIntSet other) {
+	keys = other.keys;
+	containers = other.containers;
+	chunks = other.chunks;
+	size = other.size;
+    }
+
+    private static char highBits(int value) {
+	return (char) ((value >>> 16) ^ 0x8000);
+    }
+
+    private static int value(char key, int low) {
+	return ((key ^ 0x8000) << 16) | low;
+    }
+
+    private static Container and(Container a, Container b) {
+
+	if(a instanceof ArrayContainer)
+	    return ((ArrayContainer) a).filter(b, true);
+	if(b instanceof ArrayContainer)
+	    return ((ArrayContainer) b).filter(a, true);
+
+	final long[] words = a.toBitmap().words.clone();
+	final long[] other = b.toBitmap().words;
+
+	for(int i = 0;i < BITMAP_WORDS;i++) {
+	    words[i] &= other[i];
+	}
+
+	return optimize(new BitmapContainer(words));
+    }
+
+    private static Container or(Container a, Container b) {
+
+	if(a instanceof ArrayContainer && b instanceof ArrayContainer)
+	    return optimize(((ArrayContainer) a).merge((ArrayContainer) b));
+
+	final long[] words = a.toBitmap().words.clone();
+	final long[] other = b.toBitmap().words;
+
+	for(int i = 0;i < BITMAP_WORDS;i++) {
+	    words[i] |= other[i];
+	}
+
+	return optimize(new BitmapContainer(words));
+    }
+
+    private static Container andNot(Container a, Container b) {
+
+	if(a instanceof ArrayContainer)
+	    return ((ArrayContainer) a).filter(b, false);
+
+	final long[] words = a.toBitmap().words.clone();
+	final long[] other = b.toBitmap().words;
+
+	for(int i = 0;i < BITMAP_WORDS;i++) {
+	    words[i] &= ~other[i];
+	}
+
+	return optimize(new BitmapContainer(words));
+    }
+
+    // The VectorBlockCounter if the Vector API module is loaded and the class is in the classpath, null otherwise
+    private static BlockCounter loadVectorCounter() {
+
+	if(!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+	    return null;
+
+	try {
+	    return (BlockCounter) Class.forName("VectorBlockCounter").getDeclaredConstructor().newInstance();
+	} catch(ReflectiveOperationException | LinkageError ex) {
+	    return null;
+	}
+    }
+
+    // Returns the container that takes less memory for the elements of the given one
+    private static Container optimize(Container container) {
+
+	final int cardinality = container.cardinality();
+	final int runBytes = 4 * container.numberOfRuns();
+	final int arrayBytes = 2 * cardinality;
+	final int bitmapBytes = 8 * BITMAP_WORDS;
+
+	if(runBytes < arrayBytes && runBytes < bitmapBytes) {
+	    return container instanceof RunContainer ? container : RunContainer.of(container);
+	}
+
+	if(cardinality <= MAX_ARRAY_SIZE) {
+	    return container instanceof ArrayContainer ? container : ArrayContainer.of(container);
+	}
+
+	return container.toBitmap();
+    }
+
+    /**
+     * Counts the elements lower than a value in a range of a sorted array of chars. It is implemented with the
+     * Vector API by VectorBlockCounter, which is compiled separately
+     *
+     * */
+    interface BlockCounter {
+
+	int countLower(char[] values, int from, int to, int x);
+
+    }
+
+    /**
+     * A container holds the low 16 bits of the elements of a chunk. Its methods return the container that replaces it,
+     * which is itself unless it had to change its representation
+     *
+     * */
+    private static abstract class Container {
+
+	abstract int cardinality();
+
+	abstract boolean contains(char x);
+
+	abstract Container add(char x);
+
+	abstract Container remove(char x);
+
+	// Number of elements lower than x
+	abstract int rank(char x);
+
+	// Number of elements in range [low, high]
+	abstract int countInRange(int low, int high);
+
+	// Performs the action for each element in range [low, high], in ascending order, adding base to them
+	abstract void forEach(int low, int high, int base, IntConsumer action);
+
+	// The j-th element
+	abstract int select(int j);
+
+	// Lowest element greater than or equal to x, or -1 if there is not any
+	abstract int next(int x);
+
+	// Highest element lower than or equal to x, or -1 if there is not any
+	abstract int previous(int x);
+
+	abstract int numberOfRuns();
+
+	// A bitmap with the same elements. A bitmap container returns itself
+	abstract BitmapContainer toBitmap();
+
+	abstract Container copy();
+
+	abstract int sizeInBytes();
+
+    }
+
+    private static final class ArrayContainer extends Container {
+
+	char[] values;
+	int cardinality;
+
+	ArrayContainer(int capacity) {
+	    values = new char[capacity];
+	}
+
+	ArrayContainer(char[] values, int cardinality) {
+	    this.values = values;
+	    this.cardinality = cardinality;
+	}
+
+	static ArrayContainer of(Container container) {
+
+	    final ArrayContainer array = new ArrayContainer(container.cardinality());
+
+	    for(int x = container.next(0);x >= 0;x = x < 0xFFFF ? container.next(x+1) : -1) {
+		array.values[array.cardinality++] = (char) x;
+	    }
+
+	    return array;
+	}
+
+	@Override
+	int cardinality() {
+	    return cardinality;
+	}
+
+	// Number of elements lower than x. The binary search stops at blocks of BLOCK elements, and the last
+	// block is counted with the Vector API if it is available, or with a loop without branches otherwise,
+	// so it has no mispredictions either way
+	int lowerBound(int x) {
+
+	    int low = 0;
+	    int high = cardinality;
+
+	    while(high - low > BLOCK) {
+		final int mid = (low+high) >>> 1;
+		if(values[mid] < x) {
+		    low = mid+1;
+		} else {
+		    high = mid;
+		}
+	    }
+
+	    if(VECTOR_COUNTER != null)
+		return low + VECTOR_COUNTER.countLower(values, low, high, x);
+
+	    int count = low;
+
+	    for(int i = low;i < high;i++) {
+		// Both are in range [0, 65536], so the subtraction is only negative when values[i] < x
+		count += (values[i] - x) >>> 31;
+	    }
+
+	    return count;
+	}
+
+	@Override
+	boolean contains(char x) {
+	    final int index = lowerBound(x);
+	    return index < cardinality && values[index] == x;
+	}
+
+	@Override
+	Container add(char x) {
+
+	    final int index = lowerBound(x);
+
+	    if(index < cardinality && values[index] == x)
+		return this;
+
+	    if(cardinality == MAX_ARRAY_SIZE)
+		return toBitmap().add(x);
+
+	    if(cardinality == values.length)
+		values = Arrays.copyOf(values, Math.min(MAX_ARRAY_SIZE, Math.max(4, cardinality << 1)));
+
+	    System.arraycopy(values, index, values, index+1, cardinality-index);
+	    values[index] = x;
+	    cardinality++;
+
+	    return this;
+	}
+
+	@Override
+	Container remove(char x) {
+
+	    final int index = lowerBound(x);
+
+	    if(index == cardinality || values[index] != x)
+		return this;
+
+	    System.arraycopy(values, index+1, values, index, cardinality-index-1);
+	    cardinality--;
+
+	    return this;
+	}
+
+	@Override
+	int rank(char x) {
+	    return lowerBound(x);
+	}
+
+	@Override
+	int countInRange(int low, int high) {
+	    return lowerBound(high+1) - lowerBound(low);
+	}
+
+	@Override
+	void forEach(int low, int high, int base, IntConsumer action) {
+	    for(int i = lowerBound(low);i < cardinality && values[i] <= high;i++) {
+		action.accept(base | values[i]);
+	    }
+	}
+
+	@Override
+	int select(int j) {
+	    return values[j];
+	}
+
+	@Override
+	int next(int x) {
+	    final int index = lowerBound(x);
+	    return index < cardinality ? values[index] : -1;
+	}
+
+	@Override
+	int previous(int x) {
+	    final int index = lowerBound(x+1);
+	    return index > 0 ? values[index-1] : -1;
+	}
+
+	@Override
+	int numberOfRuns() {
+
+	    int runs = cardinality > 0 ? 1 : 0;
+
+	    for(int i = 1;i < cardinality;i++) {
+		if(values[i] != values[i-1]+1)
+		    runs++;
+	    }
+
+	    return runs;
+	}
+
+	@Override
+	BitmapContainer toBitmap() {
+
+	    final BitmapContainer bitmap = new BitmapContainer(new long[BITMAP_WORDS]);
+
+	    for(int i = 0;i < cardinality;i++) {
+		bitmap.words[values[i] >>> 6] |= 1L << values[i];
+	    }
+	    bitmap.cardinality = cardinality;
+
+	    return bitmap;
+	}
+
+	@Override
+	Container copy() {
+	    return new ArrayContainer(Arrays.copyOf(values, cardinality), cardinality);
+	}
+
+	@Override
+	int sizeInBytes() {
+	    return 16 + 16 + 2 * values.length;
+	}
+
+	// Returns the elements of this container that are (or are not) in the other container
+	Container filter(Container other, boolean keep) {
+
+	    final char[] result = new char[cardinality];
+	    int n = 0;
+
+	    for(int i = 0;i < cardinality;i++) {
+		if(other.contains(values[i]) == keep)
+		    result[n++] = values[i];
+	    }
+
+	    return new ArrayContainer(result, n);
+	}
+
+	Container merge(ArrayContainer other) {
+
+	    final char[] result = new char[cardinality + other.cardinality];
+	    int n = 0;
+	    int i = 0;
+	    int j = 0;
+
+	    while(i < cardinality && j < other.cardinality) {
+		if(values[i] < other.values[j]) {
+		    result[n++] = values[i++];
+		} else if(values[i] > other.values[j]) {
+		    result[n++] = other.values[j++];
+		} else {
+		    result[n++] = values[i++];
+		    j++;
+		}
+	    }
+
+	    while(i < cardinality) {
+		result[n++] = values[i++];
+	    }
+	    while(j < other.cardinality) {
+		result[n++] = other.values[j++];
+	    }
+
+	    // It may be bigger than MAX_ARRAY_SIZE, so it must be optimized afterwards
+	    return new ArrayContainer(result, n);
+	}
+
+    }
+
+    private static final class BitmapContainer extends Container {
+
+	final long[] words;
+	int cardinality;
+
+	BitmapContainer(long[] words) {
+
+	    this.words = words;
+
+	    for(long word : words) {
+		cardinality += Long.bitCount(word);
+	    }
+	}
+
+	@Override
+	int cardinality() {
+	    return cardinality;
+	}
+
+	@Override
+	boolean contains(char x) {
+	    return (words[x >>> 6] & (1L << x)) != 0;
+	}
+
+	@Override
+	Container add(char x) {
+
+	    final long word = words[x >>> 6];
+
+	    if((word & (1L << x)) == 0) {
+		words[x >>> 6] = word | (1L << x);
+		cardinality++;
+	    }
+
+	    return this;
+	}
+
+	@Override
+	Container remove(char x) {
+
+	    final long word = words[x >>> 6];
+
+	    if((word & (1L << x)) == 0)
+		return this;
+
+	    words[x >>> 6] = word & ~(1L << x);
+
+	    if(--cardinality <= MAX_ARRAY_SIZE)
+		return ArrayContainer.of(this);
+
+	    return this;
+	}
+
+	@Override
+	int rank(char x) {
+
+	    final int w = x >>> 6;
+	    int rank = 0;
+
+	    for(int i = 0;i < w;i++) {
+		rank += Long.bitCount(words[i]);
+	    }
+
+	    return rank + Long.bitCount(words[w] & ((1L << x) - 1));
+	}
+
+	@Override
+	int countInRange(int low, int high) {
+
+	    final int lowWord = low >>> 6;
+	    final int highWord = high >>> 6;
+	    final long lowMask = -1L << low;
+	    final long highMask = -1L >>> (63 - (high & 63));
+
+	    if(lowWord == highWord)
+		return Long.bitCount(words[lowWord] & lowMask & highMask);
+
+	    // Counts 64 elements at a time
+	    int count = Long.bitCount(words[lowWord] & lowMask) + Long.bitCount(words[highWord] & highMask);
+
+	    for(int i = lowWord+1;i < highWord;i++) {
+		count += Long.bitCount(words[i]);
+	    }
+
+	    return count;
+	}
+
+	@Override
+	void forEach(int low, int high, int base, IntConsumer action) {
+
+	    final int lowWord = low >>> 6;
+	    final int highWord = high >>> 6;
+
+	    for(int w = lowWord;w <= highWord;w++) {
+
+		long word = words[w];
+
+		if(w == lowWord)
+		    word &= -1L << low;
+		if(w == highWord)
+		    word &= -1L >>> (63 - (high & 63));
+
+		// An empty word skips 64 elements at once
+		for(;word != 0;word &= word - 1) {
+		    action.accept(base | ((w << 6) + Long.numberOfTrailingZeros(word)));
+		}
+	    }
+	}
+
+	@Override
+	int select(int j) {
+
+	    int w = 0;
+
+	    for(int bits = Long.bitCount(words[w]);j >= bits;bits = Long.bitCount(words[++w])) {
+		j -= bits;
+	    }
+
+	    long word = words[w];
+
+	    // Discards the j lowest bits
+	    for(;j > 0;j--) {
+		word &= word - 1;
+	    }
+
+	    return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	@Override
+	int next(int x) {
+
+	    int w = x >>> 6;
+	    long word = words[w] & (-1L << x);
+
+	    while(word == 0) {
+		if(++w == BITMAP_WORDS)
+		    return -1;
+		word = words[w];
+	    }
+
+	    return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	@Override
+	int previous(int x) {
+
+	    int w = x >>> 6;
+	    long word = words[w] & (-1L >>> (63 - (x & 63)));
+
+	    while(word == 0) {
+		if(--w < 0)
+		    return -1;
+		word = words[w];
+	    }
+
+	    return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+	}
+
+	@Override
+	int numberOfRuns() {
+
+	    int runs = 0;
+
+	    for(int i = 0;i < BITMAP_WORDS;i++) {
+		final long next = i+1 < BITMAP_WORDS ? words[i+1] : 0;
+		// The last bit of each run is a set bit whose next bit is clear
+		runs += Long.bitCount(words[i] & ~((words[i] >>> 1) | (next << 63)));
+	    }
+
+	    return runs;
+	}
+
+	@Override
+	BitmapContainer toBitmap() {
+	    return this;
+	}
+
+	@Override
+	Container copy() {
+	    return new BitmapContainer(words.clone());
+	}
+
+	@Override
+	int sizeInBytes() {
+	    return 16 + 16 + 8 * BITMAP_WORDS;
+	}
+
+    }
+
+    private static final class RunContainer extends Container {
+
+	// Pairs of (start, length - 1) of each run
+	char[] runs;
+	int numberOfRuns;
+	int cardinality;
+
+	RunContainer(char[] runs, int numberOfRuns, int cardinality) {
+	    this.runs = runs;
+	    this.numberOfRuns = numberOfRuns;
+	    this.cardinality = cardinality;
+	}
+
+	// A container with all the values in range [low, high]
+	static RunContainer range(int low, int high) {
+	    return new RunContainer(new char[] {(char) low, (char) (high-low)}, 1, high-low+1);
+	}
+
+	static RunContainer of(Container container) {
+
+	    final char[] runs = new char[2 * container.numberOfRuns()];
+	    int n = 0;
+
+	    for(int x = container.next(0);x >= 0;) {
+
+		int end = x;
+
+		while(end < 0xFFFF && container.contains((char) (end+1))) {
+		    end++;
+		}
+
+		runs[n++] = (char) x;
+		runs[n++] = (char) (end - x);
+
+		x = end < 0xFFFF ? container.next(end+1) : -1;
+	    }
+
+	    return new RunContainer(runs, n >>> 1, container.cardinality());
+	}
+
+	int start(int run) {
+	    return runs[run << 1];
+	}
+
+	int end(int run) {
+	    return runs[run << 1] + runs[(run << 1) + 1];
+	}
+
+	// Last run that starts at or before x, or -1 if there is not any
+	int runOf(int x) {
+
+	    int low = 0;
+	    int high = numberOfRuns-1;
+
+	    while(low <= high) {
+		final int mid = (low+high) >>> 1;
+		if(start(mid) <= x) {
+		    low = mid+1;
+		} else {
+		    high = mid-1;
+		}
+	    }
+
+	    return low-1;
+	}
+
+	@Override
+	int cardinality() {
+	    return cardinality;
+	}
+
+	@Override
+	boolean contains(char x) {
+	    final int run = runOf(x);
+	    return run >= 0 && x <= end(run);
+	}
+
+	@Override
+	Container add(char x) {
+
+	    final int run = runOf(x);
+
+	    if(run >= 0 && x <= end(run))
+		return this;
+
+	    final boolean extendsPrevious = run >= 0 && x == end(run)+1;
+	    final boolean extendsNext = run+1 < numberOfRuns && x+1 == start(run+1);
+
+	    if(extendsPrevious && extendsNext) {
+		// x joins 2 runs
+		runs[(run << 1) + 1] = (char) (end(run+1) - start(run));
+		removeRun(run+1);
+	    } else if(extendsPrevious) {
+		runs[(run << 1) + 1]++;
+	    } else if(extendsNext) {
+		runs[(run+1) << 1]--;
+		runs[((run+1) << 1) + 1]++;
+	    } else {
+		insertRun(run+1, x, x);
+	    }
+
+	    cardinality++;
+
+	    return numberOfRuns > BITMAP_WORDS * 2 ? toBitmap() : this;
+	}
+
+	@Override
+	Container remove(char x) {
+
+	    final int run = runOf(x);
+
+	    if(run < 0 || x > end(run))
+		return this;
+
+	    final int start = start(run);
+	    final int end = end(run);
+
+	    if(start == end) {
+		removeRun(run);
+	    } else if(x == start) {
+		runs[run << 1]++;
+		runs[(run << 1) + 1]--;
+	    } else if(x == end) {
+		runs[(run << 1) + 1]--;
+	    } else {
+		// x splits the run in two
+		runs[(run << 1) + 1] = (char) (x-1-start);
+		insertRun(run+1, x+1, end);
+	    }
+
+	    cardinality--;
+
+	    return numberOfRuns > BITMAP_WORDS * 2 ? toBitmap() : this;
+	}
+
+	private void insertRun(int run, int start, int end) {
+
+	    if(numberOfRuns << 1 == runs.length)
+		runs = Arrays.copyOf(runs, Math.max(4, runs.length << 1));
+
+	    System.arraycopy(runs, run << 1, runs, (run+1) << 1, (numberOfRuns-run) << 1);
+
+	    runs[run << 1] = (char) start;
+	    runs[(run << 1) + 1] = (char) (end-start);
+	    numberOfRuns++;
+	}
+
+	private void removeRun(int run) {
+	    System.arraycopy(runs, (run+1) << 1, runs, run << 1, (numberOfRuns-run-1) << 1);
+	    numberOfRuns--;
+	}
+
+	@Override
+	int rank(char x) {
+
+	    int rank = 0;
+
+	    for(int run = 0;run < numberOfRuns && start(run) < x;run++) {
+		rank += Math.min(end(run), x-1) - start(run) + 1;
+	    }
+
+	    return rank;
+	}
+
+	@Override
+	int countInRange(int low, int high) {
+
+	    int count = 0;
+
+	    for(int run = Math.max(0, runOf(low));run < numberOfRuns && start(run) <= high;run++) {
+		count += Math.max(0, Math.min(end(run), high) - Math.max(start(run), low) + 1);
+	    }
+
+	    return count;
+	}
+
+	@Override
+	void forEach(int low, int high, int base, IntConsumer action) {
+
+	    for(int run = Math.max(0, runOf(low));run < numberOfRuns && start(run) <= high;run++) {
+
+		final int end = Math.min(end(run), high);
+
+		for(int x = Math.max(start(run), low);x <= end;x++) {
+		    action.accept(base | x);
+		}
+	    }
+	}
+
+	@Override
+	int select(int j) {
+
+	    int run = 0;
+
+	    for(int length = runs[1]+1;j >= length;length = runs[(++run << 1) + 1]+1) {
+		j -= length;
+	    }
+
+	    return start(run) + j;
+	}
+
+	@Override
+	int next(int x) {
+
+	    final int run = runOf(x);
+
+	    if(run >= 0 && x <= end(run))
+		return x;
+
+	    return run+1 < numberOfRuns ? start(run+1) : -1;
+	}
+
+	@Override
+	int previous(int x) {
+	    final int run = runOf(x);
+	    return run >= 0 ? Math.min(x, end(run)) : -1;
+	}
+
+	@Override
+	int numberOfRuns() {
+	    return numberOfRuns;
+	}
+
+	@Override
+	BitmapContainer toBitmap() {
+
+	    final long[] words = new long[BITMAP_WORDS];
+
+	    for(int run = 0;run < numberOfRuns;run++) {
+		for(int x = start(run), end = end(run);x <= end;x++) {
+		    words[x >>> 6] |= 1L << x;
+		}
+	    }
+
+	    return new BitmapContainer(words);
+	}
+
+	@Override
+	Container copy() {
+	    return new RunContainer(Arrays.copyOf(runs, numberOfRuns << 1), numberOfRuns, cardinality);
+	}
+
+	@Override
+	int sizeInBytes() {
+	    return 16 + 16 + 2 * runs.length;
+	}
+
+    }
+
+    private class ForwardIterator implements PrimitiveIterator.OfInt {
+
+	private int chunk = 0;
+	// Next low 16 bits to return from the current chunk
+	private int low = chunks > 0 ? containers[0].next(0) : -1;
+	private boolean removable = false;
+	private int last;
+
+	@Override
+	public boolean hasNext() {
+	    return chunk < chunks;
+	}
+
+	@Override
+	public int nextInt() {
+
+	    if(chunk >= chunks)
+		throw new NoSuchElementException();
+
+	    last = value(keys[chunk], low);
+	    removable = true;
+
+	    low = low < 0xFFFF ? containers[chunk].next(low+1) : -1;
+
+	    if(low < 0 && ++chunk < chunks)
+		low = containers[chunk].next(0);
+
+	    return last;
+	}
+
+	@Override
+	public void remove() {
+
+	    if(!removable)
+		throw new IllegalStateException("¡The iterator has no elements to remove!");
+
+	    removable = false;
+
+	    final boolean hasNext = chunk < chunks;
+	    final int next = hasNext ? value(keys[chunk], low) : 0;
+
+	    CompressedIntSet.this.removeValue(last);
+
+	    // The chunk of the next element moves if the chunk of the removed one becomes empty
+	    chunk = hasNext ? chunkOf(highBits(next)) : chunks;
+	}
+
+    }
+
+    private class BackwardIterator implements PrimitiveIterator.OfInt {
+
+	private int chunk = chunks-1;
+	// Next low 16 bits to return from the current chunk
+	private int low = chunks > 0 ? containers[chunks-1].previous(0xFFFF) : -1;
+
+	@Override
+	public boolean hasNext() {
+	    return chunk >= 0;
+	}
+
+	@Override
+	public int nextInt() {
+
+	    if(chunk < 0)
+		throw new NoSuchElementException();
+
+	    final int value = value(keys[chunk], low);
+
+	    low = low > 0 ? containers[chunk].previous(low-1) : -1;
+
+	    if(low < 0 && --chunk >= 0)
+		low = containers[chunk].previous(0xFFFF);
+
+	    return value;
+	}
+
+    }
+
+}
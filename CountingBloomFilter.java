@@ -0,0 +1,297 @@
+import java.util.Arrays;
+
+
+/**
+ * A blocked counting Bloom filter over the hash codes of the elements of a set. It answers whether
+ * an element might be in the set or is definitely not in it, so most of the lookups of elements that
+ * are not in the set can return without searching it.
+ *
+ * The counters are 4 bits long and are grouped in blocks of 64 bytes (one cache line), and all the
+ * counters of an element are in the same block, so a lookup touches only one cache line. Since the
+ * counters can be decremented, it also supports removal. A counter that reaches 15 gets stuck there,
+ * which never causes false negatives but makes the filter less accurate after many removals. In that
+ * case, or when the filter holds more elements than expected, the owner set should rebuild it.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class CountingBloomFilter {
+
+    /** FIELDS */
+
+    // Number of longs of each block. 8 longs = 64 bytes = 128 counters of 4 bits
+    private static final int BLOCK_WORDS = 8;
+    // Number of counters of each block
+    private static final int BLOCK_COUNTERS = BLOCK_WORDS * 16;
+    // Value at which a counter gets stuck
+    private static final int MAX_COUNT = 15;
+
+    // The counters, BLOCK_WORDS longs per block
+    private long[] words;
+    // Number of blocks - 1. The number of blocks is always a power of two
+    private int blockMask;
+    // Number of counters used by each element
+    private int hashes;
+    // Number of elements this filter was sized for
+    private int expected;
+    // Desired false positive rate
+    private final double falsePositiveRate;
+    // Number of elements currently in this filter
+    private int count = 0;
+    // Number of removals since this filter was last cleared
+    private int removed = 0;
+
+    /** END OF FIELDS */
+
+
+    /**
+     * Constructs a new filter sized for the expected number of elements and the desired false positive rate.
+     *
+     * @param expected the expected number of elements
+     * @param falsePositiveRate the desired false positive rate, in range (0, 1)
+     *
+     * @throws IllegalArgumentException if expected is negative or falsePositiveRate is out of range
+     *
+     * */
+    public CountingBloomFilter(int expected, double falsePositiveRate) {
+	if(falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+	    throw new IllegalArgumentException("False positive rate must be in range (0, 1)");
+	}
+	this.falsePositiveRate = falsePositiveRate;
+	reset(expected);
+    }
+
+    /**
+     * Clears this filter and resizes it for the given expected number of elements
+     *
+     * @param expected the expected number of elements
+     *
+     * @throws IllegalArgumentException if expected is negative
+     *
+     * */
+    public void reset(int expected) {
+	if(expected < 0) {
+	    throw new IllegalArgumentException("Expected number of elements must be >= 0");
+	}
+
+	this.expected = Math.max(expected, 1);
+
+	final double counters = counters(this.expected, falsePositiveRate);
+	final int blocks = blocks(counters);
+
+	hashes = (int) Math.max(1, Math.min(12, Math.round(counters / this.expected * Math.log(2))));
+	words = new long[blocks * BLOCK_WORDS];
+	blockMask = blocks - 1;
+	count = 0;
+	removed = 0;
+    }
+
+    /**
+     * Adds an element to this filter
+     *
+     * @param hash the hash code of the element
+     *
+     * */
+    public void add(int hash) {
+
+	final long h = mix(hash);
+	final int block = ((int) (h >>> 32) & blockMask) * BLOCK_WORDS;
+	final int step = (int) (h >>> 40) | 1;
+
+	for(int i = 0, c = (int) h;i < hashes;i++, c += step) {
+	    final int word = block + ((c >>> 4) & (BLOCK_WORDS-1));
+	    final int shift = (c & 15) << 2;
+	    if(((words[word] >>> shift) & MAX_COUNT) < MAX_COUNT)
+		words[word] += 1L << shift;
+	}
+
+	count++;
+    }
+
+    /**
+     * Removes an element from this filter. The element must have been added before, otherwise this filter
+     * could give false negatives
+     *
+     * @param hash the hash code of the element
+     *
+     * */
+    public void remove(int hash) {
+
+	final long h = mix(hash);
+	final int block = ((int) (h >>> 32) & blockMask) * BLOCK_WORDS;
+	final int step = (int) (h >>> 40) | 1;
+
+	for(int i = 0, c = (int) h;i < hashes;i++, c += step) {
+	    final int word = block + ((c >>> 4) & (BLOCK_WORDS-1));
+	    final int shift = (c & 15) << 2;
+	    final long value = (words[word] >>> shift) & MAX_COUNT;
+	    // Stuck counters are never decremented, because we do not know their actual value
+	    if(value > 0 && value < MAX_COUNT)
+		words[word] -= 1L << shift;
+	}
+
+	count--;
+	removed++;
+    }
+
+    /**
+     * Returns whether an element might be in this filter. If it returns false, the element is definitely not in it
+     *
+     * @param hash the hash code of the element
+     *
+     * @return false if the element is not in this filter, true if it might be
+     *
+     * */
+    public boolean mightContain(int hash) {
+
+	final long h = mix(hash);
+	final int block = ((int) (h >>> 32) & blockMask) * BLOCK_WORDS;
+	final int step = (int) (h >>> 40) | 1;
+
+	for(int i = 0, c = (int) h;i < hashes;i++, c += step) {
+	    final int word = block + ((c >>> 4) & (BLOCK_WORDS-1));
+	    if(((words[word] >>> ((c & 15) << 2)) & MAX_COUNT) == 0)
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Removes all the elements of this filter, keeping its size
+     *
+     * */
+    public void clear() {
+	Arrays.fill(words, 0);
+	count = 0;
+	removed = 0;
+    }
+
+    /**
+     * Returns the number of elements in this filter
+     *
+     * @return the number of elements
+     *
+     * */
+    public int count() {
+	return count;
+    }
+
+    /**
+     * Returns the number of elements this filter was sized for
+     *
+     * @return the expected number of elements
+     *
+     * */
+    public int expected() {
+	return expected;
+    }
+
+    /**
+     * Returns the false positive rate this filter was sized for
+     *
+     * @return the desired false positive rate
+     *
+     * */
+    public double falsePositiveRate() {
+	return falsePositiveRate;
+    }
+
+    /**
+     * Returns the fraction of counters that are not zero. The higher it is, the more false positives this filter gives
+     *
+     * @return the saturation of this filter, in range [0, 1]
+     *
+     * */
+    public double saturation() {
+
+	long used = 0;
+
+	for(long word : words) {
+	    // Sets the lowest bit of each nibble that is not zero, and counts them
+	    final long nibbles = word | (word >>> 1);
+	    used += Long.bitCount((nibbles | (nibbles >>> 2)) & 0x1111111111111111L);
+	}
+
+	return (double) used / (words.length * 16L);
+    }
+
+    /**
+     * Returns the estimated false positive rate of this filter with its current saturation
+     *
+     * @return the estimated false positive rate
+     *
+     * */
+    public double estimatedFalsePositiveRate() {
+	return Math.pow(saturation(), hashes);
+    }
+
+    /**
+     * Returns whether this filter should be rebuilt from the elements of its set. That happens when it holds
+     * more elements than it was sized for, or when there have been more removals than elements it holds
+     *
+     * @return true if this filter should be rebuilt, false otherwise
+     *
+     * */
+    public boolean needsRebuild() {
+	return count > expected || (removed > count && removed > (expected >>> 2));
+    }
+
+    /**
+     * Returns the estimated number of bytes of heap retained by this filter
+     *
+     * @return the retained bytes
+     *
+     * */
+    public long retainedBytes() {
+	return MemoryBudget.objectBytes(1, 28) + MemoryBudget.arrayBytes(words.length, 8);
+    }
+
+    /**
+     * Returns the estimated number of bytes of heap a filter sized for the given parameters would retain
+     *
+     * @param expected the expected number of elements
+     * @param falsePositiveRate the desired false positive rate, in range (0, 1)
+     *
+     * @return the retained bytes
+     *
+     * */
+    public static long retainedBytes(int expected, double falsePositiveRate) {
+	final int blocks = blocks(counters(Math.max(expected, 1), falsePositiveRate));
+	return MemoryBudget.objectBytes(1, 28) + MemoryBudget.arrayBytes(blocks * BLOCK_WORDS, 8);
+    }
+
+    // Optimal number of counters of a classic Bloom filter
+    private static double counters(int expected, double falsePositiveRate) {
+	final double ln2 = Math.log(2);
+	return -expected * Math.log(falsePositiveRate) / (ln2 * ln2);
+    }
+
+    // Number of blocks needed to hold the given number of counters. It is always a power of two
+    private static int blocks(double counters) {
+
+	int blocks = Integer.highestOneBit((int) Math.min(1 << 30, Math.ceil(counters / BLOCK_COUNTERS)));
+	if(blocks < counters / BLOCK_COUNTERS)
+	    blocks <<= 1;
+
+	return Math.max(blocks, 1);
+    }
+
+    // Spreads the bits of a hash code over a long (the finalizer of MurmurHash3)
+    private static long mix(int hash) {
+	long h = hash * 0x9E3779B97F4A7C15L;
+	h ^= h >>> 33;
+	h *= 0xFF51AFD7ED558CCDL;
+	h ^= h >>> 33;
+	h *= 0xC4CEB93FE1A85EC3L;
+	h ^= h >>> 33;
+	return h;
+    }
+
+    @Override
+    public String toString() {
+	return "CountingBloomFilter[count="+count+",expected="+expected+",hashes="+hashes
+		+",saturation="+saturation()+"]";
+    }
+
+}
@@ -0,0 +1,560 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+
+/**
+ * A LinkedSet that survives restarts. Every add, remove and clear that changes the set is appended to a
+ * write-ahead log in the given directory, and every checkpointInterval changes the whole set is written to a
+ * snapshot file, in insertion order, and the log starts over. When the set is created again on the same directory,
+ * it loads the snapshot and replays the log after it, so recovery never replays more than checkpointInterval changes.
+ *
+ * Changes are group committed: they are buffered and written and synced to disk together every syncBatch changes,
+ * every syncInterval milliseconds (checked on each change) or when sync is called. A crash may lose the changes
+ * that were not synced yet, but never leaves the set in a state that was not reached before. Each log record has
+ * its own checksum, so a torn record at the end of the log is detected and discarded.
+ *
+ * The elements are written and read by a Codec. It is not thread safe, like LinkedSet.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class DurableLinkedSet<E> extends LinkedSet<E> implements Closeable {
+
+    /**
+     * Writes and reads the elements of a DurableLinkedSet
+     *
+     * */
+    public interface Codec<E> {
+
+	void write(E e, DataOutput out) throws IOException;
+
+	E read(DataInput in) throws IOException;
+
+	/** Codec for String elements */
+	Codec<String> STRING = new Codec<String>() {
+	    @Override
+	    public void write(String e, DataOutput out) throws IOException {
+		out.writeUTF(e);
+	    }
+	    @Override
+	    public String read(DataInput in) throws IOException {
+		return in.readUTF();
+	    }
+	};
+
+	/** Codec for Long elements */
+	Codec<Long> LONG = new Codec<Long>() {
+	    @Override
+	    public void write(Long e, DataOutput out) throws IOException {
+		out.writeLong(e);
+	    }
+	    @Override
+	    public Long read(DataInput in) throws IOException {
+		return in.readLong();
+	    }
+	};
+
+	/** Codec for Integer elements */
+	Codec<Integer> INTEGER = new Codec<Integer>() {
+	    @Override
+	    public void write(Integer e, DataOutput out) throws IOException {
+		out.writeInt(e);
+	    }
+	    @Override
+	    public Integer read(DataInput in) throws IOException {
+		return in.readInt();
+	    }
+	};
+
+    }
+
+    /** FIELDS */
+
+    private static final int SNAPSHOT_MAGIC = 0x4C534E50;
+    private static final int LOG_MAGIC = 0x4C574C47;
+
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte CLEAR = 3;
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Codec<E> codec;
+
+    // Generation of the current snapshot. The log only applies to the snapshot of its same generation
+    private long generation = 0;
+    // Channel of the log, or null if this set is closed
+    private FileChannel log;
+
+    // Records waiting to be written and synced
+    private final Buffer pending = new Buffer();
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+    private int pendingRecords = 0;
+    // Payload of the record being written
+    private final Buffer record = new Buffer();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+
+    // Number of changes that are synced together
+    private int syncBatch = 1;
+    // Maximum number of milliseconds a change waits to be synced. Zero means that only syncBatch counts
+    private long syncInterval = 0;
+    private long lastSync = System.currentTimeMillis();
+    // Number of changes between checkpoints
+    private int checkpointInterval = 100000;
+    private int changesSinceCheckpoint = 0;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Opens the DurableLinkedSet stored in the given directory, or creates an empty one if there is not any.
+     * The set is recovered from the last snapshot and the log after it
+     *
+     * @param directory where the snapshot and the log are stored
+     * @param codec to write and read the elements
+     *
+     * @throws IOException if the directory cannot be created or the snapshot cannot be read
+     *
+     * */
+    public DurableLinkedSet(Path directory, Codec<E> codec) throws IOException {
+
+	if(codec == null)
+	    throw new NullPointerException("Codec cannot be null!");
+
+	Files.createDirectories(directory);
+
+	this.snapshotFile = directory.resolve("snapshot");
+	this.logFile = directory.resolve("wal");
+	this.codec = codec;
+
+	recover();
+    }
+
+    @Override
+    public boolean add(E e) {
+	checkOpen();
+	final boolean changed = super.add(e);
+	if(changed)
+	    log(ADD, e);
+	return changed;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean remove(Object obj) {
+	checkOpen();
+	final boolean changed = super.remove(obj);
+	// obj is equal to an element of this set, so it is an E too
+	if(changed)
+	    log(REMOVE, (E) obj);
+	return changed;
+    }
+
+    @Override
+    public void clear() {
+	checkOpen();
+	if(isEmpty())
+	    return;
+	super.clear();
+	log(CLEAR, null);
+    }
+
+    /**
+     * Writes and syncs to disk all the changes that are waiting to be synced
+     *
+     * @throws UncheckedIOException if the log cannot be written
+     *
+     * */
+    public void sync() {
+
+	checkOpen();
+
+	try {
+
+	    if(pending.size() > 0) {
+
+		final ByteBuffer buffer = ByteBuffer.wrap(pending.array(), 0, pending.size());
+
+		while(buffer.hasRemaining()) {
+		    log.write(buffer);
+		}
+
+		log.force(false);
+		pending.reset();
+		pendingRecords = 0;
+	    }
+
+	    lastSync = System.currentTimeMillis();
+
+	} catch(IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    /**
+     * Writes the whole set to a new snapshot and starts a new empty log. It is done automatically every
+     * checkpointInterval changes
+     *
+     * @throws UncheckedIOException if the snapshot or the log cannot be written
+     *
+     * */
+    public void checkpoint() {
+
+	sync();
+
+	try {
+	    // If it crashes after the snapshot is written, the old log is discarded because of its generation
+	    writeSnapshot(generation + 1);
+	    generation++;
+	    log.close();
+	    startLog();
+	    changesSinceCheckpoint = 0;
+	} catch(IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+    }
+
+    /**
+     * Syncs the pending changes and closes the log. The set cannot be modified afterwards
+     *
+     * @throws IOException if the log cannot be written
+     *
+     * */
+    @Override
+    public void close() throws IOException {
+
+	if(log == null)
+	    return;
+
+	try {
+	    sync();
+	} catch(UncheckedIOException ex) {
+	    throw ex.getCause();
+	} finally {
+	    log.close();
+	    log = null;
+	}
+    }
+
+    /**
+     * Returns the number of changes that are synced together
+     *
+     * @return the sync batch of this set
+     *
+     * */
+    public int syncBatch() {
+	return syncBatch;
+    }
+
+    /**
+     * Sets the number of changes that are synced together. A higher batch gives more throughput, but a crash
+     * may lose up to syncBatch-1 changes. It must be greater than zero
+     *
+     * */
+    public void setSyncBatch(int syncBatch) {
+	if(syncBatch <= 0) {
+	    throw new IllegalArgumentException("Sync batch must be > 0");
+	}
+	this.syncBatch = syncBatch;
+    }
+
+    /**
+     * Returns the maximum number of milliseconds a change waits to be synced, or zero if only the sync batch counts
+     *
+     * @return the sync interval of this set
+     *
+     * */
+    public long syncInterval() {
+	return syncInterval;
+    }
+
+    /**
+     * Sets the maximum number of milliseconds a change waits to be synced. It is checked when the next change is
+     * made. Zero means that changes are only synced by batches. It must not be negative
+     *
+     * */
+    public void setSyncInterval(long syncInterval) {
+	if(syncInterval < 0) {
+	    throw new IllegalArgumentException("Sync interval must be >= 0");
+	}
+	this.syncInterval = syncInterval;
+    }
+
+    /**
+     * Returns the number of changes between checkpoints
+     *
+     * @return the checkpoint interval of this set
+     *
+     * */
+    public int checkpointInterval() {
+	return checkpointInterval;
+    }
+
+    /**
+     * Sets the number of changes between checkpoints. It bounds the number of changes replayed on recovery.
+     * It must be greater than zero
+     *
+     * */
+    public void setCheckpointInterval(int checkpointInterval) {
+	if(checkpointInterval <= 0) {
+	    throw new IllegalArgumentException("Checkpoint interval must be > 0");
+	}
+	this.checkpointInterval = checkpointInterval;
+    }
+
+    private void checkOpen() {
+	if(log == null)
+	    throw new IllegalStateException("The set is closed");
+    }
+
+    private void log(byte op, E e) {
+
+	checkOpen();
+
+	try {
+
+	    record.reset();
+	    if(e != null)
+		codec.write(e, recordOut);
+	    recordOut.flush();
+
+	    crc.reset();
+	    crc.update(op);
+	    crc.update(record.array(), 0, record.size());
+
+	    pendingOut.writeByte(op);
+	    pendingOut.writeInt(record.size());
+	    pendingOut.write(record.array(), 0, record.size());
+	    pendingOut.writeInt((int) crc.getValue());
+	    pendingOut.flush();
+
+	} catch(IOException ex) {
+	    throw new UncheckedIOException(ex);
+	}
+
+	if(++pendingRecords >= syncBatch
+		|| (syncInterval > 0 && System.currentTimeMillis() - lastSync >= syncInterval)) {
+	    sync();
+	}
+
+	if(++changesSinceCheckpoint >= checkpointInterval)
+	    checkpoint();
+    }
+
+    private void recover() throws IOException {
+
+	if(Files.exists(snapshotFile))
+	    loadSnapshot();
+
+	final long length = Files.exists(logFile) ? replayLog() : -1;
+
+	if(length < 0) {
+	    startLog();
+	} else {
+	    // Discards the torn records at the end of the log, if any
+	    log = FileChannel.open(logFile, StandardOpenOption.WRITE);
+	    log.truncate(length);
+	    log.position(length);
+	}
+    }
+
+    private void loadSnapshot() throws IOException {
+
+	final CheckedInputStream checked = new CheckedInputStream(
+		new BufferedInputStream(Files.newInputStream(snapshotFile)), new CRC32());
+
+	try(DataInputStream in = new DataInputStream(checked)) {
+
+	    if(in.readInt() != SNAPSHOT_MAGIC)
+		throw new IOException(snapshotFile + " is not a snapshot");
+
+	    generation = in.readLong();
+
+	    // The elements are stored from the oldest to the newest, so adding them keeps the insertion order.
+	    // They are unique, so they are linked without looking for them first
+	    for(int count = in.readInt();count > 0;count--) {
+		linkFirst(codec.read(in));
+	    }
+
+	    final long checksum = checked.getChecksum().getValue();
+
+	    if(in.readLong() != checksum)
+		throw new IOException(snapshotFile + " is corrupted");
+	}
+    }
+
+    private void writeSnapshot(long generation) throws IOException {
+
+	final Path tmp = snapshotFile.resolveSibling("snapshot.tmp");
+	final CheckedOutputStream checked = new CheckedOutputStream(
+		new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32());
+
+	try(DataOutputStream out = new DataOutputStream(checked)) {
+
+	    out.writeInt(SNAPSHOT_MAGIC);
+	    out.writeLong(generation);
+	    out.writeInt(size());
+
+	    // toArray returns the newest elements first
+	    final Object[] elements = toArray();
+
+	    for(int i = elements.length-1;i >= 0;i--) {
+		@SuppressWarnings("unchecked")
+		final E e = (E) elements[i];
+		codec.write(e, out);
+	    }
+
+	    out.flush();
+	    out.writeLong(checked.getChecksum().getValue());
+	}
+
+	force(tmp);
+	Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	// The new snapshot must be on disk before the log of its generation replaces the old one. Otherwise,
+	// after a crash, the old snapshot could be found next to the new log, which would be discarded as stale
+	forceDirectory(snapshotFile);
+    }
+
+    // Replays the log over the snapshot and returns the length of its valid part, or -1 if it does not apply
+    private long replayLog() throws IOException {
+
+	final long fileLength = Files.size(logFile);
+
+	try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+
+	    try {
+		if(in.readInt() != LOG_MAGIC || in.readLong() != generation)
+		    return -1;
+	    } catch(EOFException ex) {
+		return -1;
+	    }
+
+	    long length = 12;
+
+	    while(true) {
+		try {
+
+		    final int op = in.read();
+
+		    if(op < 0)
+			break;
+
+		    final int payloadLength = in.readInt();
+
+		    // A torn length may be anything
+		    if(payloadLength < 0 || length + 1 + 4 + payloadLength + 4 > fileLength)
+			break;
+
+		    final byte[] payload = new byte[payloadLength];
+		    in.readFully(payload);
+		    final int checksum = in.readInt();
+
+		    crc.reset();
+		    crc.update(op);
+		    crc.update(payload);
+
+		    if((int) crc.getValue() != checksum)
+			break;
+
+		    apply((byte) op, payload);
+		    length += 1 + 4 + payload.length + 4;
+		    changesSinceCheckpoint++;
+
+		} catch(EOFException ex) {
+		    // The last record was torn by a crash
+		    break;
+		}
+	    }
+
+	    return length;
+	}
+    }
+
+    private void apply(byte op, byte[] payload) throws IOException {
+
+	final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+	switch(op) {
+	    case ADD:
+		// Additions are only logged when the element was not in the set, and the log always starts
+		// from the snapshot of its generation, so the element is not in the set now either
+		linkFirst(codec.read(in));
+		break;
+	    case REMOVE:
+		super.remove(codec.read(in));
+		break;
+	    case CLEAR:
+		super.clear();
+		break;
+	    default:
+		throw new IOException("Unknown operation " + op + " in " + logFile);
+	}
+    }
+
+    // Creates a new empty log for the current generation
+    private void startLog() throws IOException {
+
+	final Path tmp = logFile.resolveSibling("wal.tmp");
+
+	try(DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+	    out.writeInt(LOG_MAGIC);
+	    out.writeLong(generation);
+	}
+
+	force(tmp);
+	Files.move(tmp, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	forceDirectory(logFile);
+
+	log = FileChannel.open(logFile, StandardOpenOption.WRITE);
+	log.position(log.size());
+    }
+
+    private static void force(Path file) throws IOException {
+	try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+	    channel.force(true);
+	}
+    }
+
+    // Writes to disk the directory that contains the given file, so a rename in it survives a crash. Some
+    // platforms, like Windows, cannot open a directory and give no way to write it to disk, so it is skipped there
+    private static void forceDirectory(Path file) throws IOException {
+
+	final Path directory = file.toAbsolutePath().getParent();
+
+	try(FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+	    channel.force(true);
+	} catch(IOException ex) {
+	    if(!System.getProperty("os.name", "").startsWith("Windows"))
+		throw ex;
+	}
+    }
+
+    // A ByteArrayOutputStream that gives access to its array, to avoid copying it
+    private static class Buffer extends ByteArrayOutputStream {
+	byte[] array() {
+	    return buf;
+	}
+    }
+
+}
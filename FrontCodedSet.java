@@ -0,0 +1,792 @@
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+
+
+/**
+ * An immutable sorted set of strings that stores them front coded. The strings are encoded in UTF-8 and
+ * grouped in blocks of 16: the first string of each block is stored whole, and each of the others only stores
+ * the length of the prefix it shares with the previous one and the rest of its bytes. All the blocks are
+ * packed in a single byte array, so a set of URLs or paths that share long prefixes takes a fraction of the
+ * memory that String objects take in an ArraySet.
+ *
+ * Lookups search the sampled index of the first strings of the blocks, and then scan a single block comparing
+ * bytes, without decoding any string. The strings are sorted by their UTF-8 bytes, which is the order of their
+ * code points. It is the same as the order of String.compareTo, except for a few characters beyond the Basic
+ * Multilingual Plane. Strings with unpaired surrogates cannot be encoded in UTF-8, so they are not allowed.
+ *
+ * Range views (headSet, subSet, tailSet and prefixRange) share the arrays of this set and are created in O(log n).
+ * It does not allow null elements.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class FrontCodedSet implements SortedSet<String>, MemoryFootprint {
+
+    /** FIELDS */
+
+    // Number of strings of each block
+    private static final int BLOCK = 16;
+
+    // Compares strings by their code points, which is the order of their UTF-8 bytes
+    private static final Comparator<String> CODE_POINT_ORDER = new CodePointComparator();
+
+    // The blocks, one after another
+    private final byte[] bytes;
+    // Position of each block in bytes. This is the sampled index of the first string of each block
+    private final int[] blocks;
+    // Number of strings of the whole set
+    private final int total;
+    // Length in bytes of the longest string, so that any string can be decoded into a buffer of this length
+    private final int maxLength;
+    // Range of positions of the whole set that belong to this set
+    private final int from;
+    private final int to;
+    // Cached hash code, or 0 if it has not been computed yet
+    private int hash;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs a FrontCodedSet with all the strings of the given collection
+     *
+     * @param strings the strings of the set
+     *
+     * @throws NullPointerException if any of the strings is null
+     * @throws IllegalArgumentException if any of the strings has an unpaired surrogate
+     *
+     * */
+    public FrontCodedSet(Collection<String> strings) {
+
+	final byte[][] keys = new byte[strings.size()][];
+
+	int n = 0;
+
+	for(String s : strings) {
+	    if(s == null)
+		throw new NullPointerException("FrontCodedSet does not allow null elements");
+	    keys[n++] = encodeKey(s);
+	}
+
+	Arrays.sort(keys, 0, n, Arrays::compareUnsigned);
+
+	// Discard the repeated strings
+	int unique = n > 0 ? 1 : 0;
+
+	for(int i = 1;i < n;i++) {
+	    if(!Arrays.equals(keys[i], keys[unique-1]))
+		keys[unique++] = keys[i];
+	}
+
+	// Encodes the blocks. The encoded strings are never longer than the original ones plus 2 varints
+	byte[] out = new byte[64];
+	int length = 0;
+	int longest = 0;
+
+	final int[] offsets = new int[(unique + BLOCK-1) / BLOCK];
+
+	for(int i = 0;i < unique;i++) {
+
+	    final byte[] key = keys[i];
+	    final int shared = (i % BLOCK) == 0 ? 0 : sharedPrefix(keys[i-1], key);
+
+	    if(length + key.length + 10 > out.length)
+		out = Arrays.copyOf(out, Math.max(out.length << 1, length + key.length + 10));
+
+	    if(i % BLOCK == 0) {
+		offsets[i / BLOCK] = length;
+	    } else {
+		length = writeVarint(out, length, shared);
+	    }
+
+	    length = writeVarint(out, length, key.length - shared);
+	    System.arraycopy(key, shared, out, length, key.length - shared);
+	    length += key.length - shared;
+
+	    longest = Math.max(longest, key.length);
+	}
+
+	bytes = Arrays.copyOf(out, length);
+	blocks = offsets;
+	total = unique;
+	maxLength = longest;
+	from = 0;
+	to = unique;
+    }
+
+    /**
+     * Constructs a FrontCodedSet with all the strings of the given array
+     *
+     * @param strings the strings of the set
+     *
+     * @throws NullPointerException if any of the strings is null
+     * @throws IllegalArgumentException if any of the strings has an unpaired surrogate
+     *
+     * */
+    public FrontCodedSet(String... strings) {
+	this(Arrays.asList(strings));
+    }
+
+    // Constructs a view of the given set over the positions [from, to)
+    private FrontCodedSet(FrontCodedSet set, int from, int to) {
+	bytes = set.bytes;
+	blocks = set.blocks;
+	total = set.total;
+	maxLength = set.maxLength;
+	this.from = from;
+	this.to = to;
+    }
+
+    @Override
+    public int size() {
+	return to - from;
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return to == from;
+    }
+
+    /**
+     * Returns the position of the given string within this set
+     *
+     * @param o the string to look for
+     *
+     * @return the position of the string, or -(insertion point)-1 if it is not in this set
+     *
+     * @throws IllegalArgumentException if the string has an unpaired surrogate
+     *
+     * */
+    public int indexOf(Object o) {
+
+	final int index = search(encodeKey((String) o));
+
+	if(index >= from && index < to)
+	    return index - from;
+
+	final int insertion = Math.max(from, Math.min(to, index >= 0 ? index : -index-1));
+	return -(insertion - from)-1;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+
+	if(!(o instanceof String) || isEmpty())
+	    return false;
+
+	final byte[] key = encode((String) o);
+
+	// A string that cannot be encoded cannot be in this set either
+	if(key == null)
+	    return false;
+
+	final int index = search(key);
+
+	return index >= from && index < to;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> other) {
+
+	for(Object o : other) {
+	    if(!contains(o))
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Returns the string at the specified position
+     *
+     * @param i where the string is
+     *
+     * @return the string at given position
+     *
+     * @throws ArrayIndexOutOfBoundsException if the position is out of range
+     *
+     * */
+    public String get(int i) {
+
+	if(i < 0 || i >= size())
+	    throw new ArrayIndexOutOfBoundsException(i + " is out of range [0,"+size()+")");
+
+	final int index = from + i;
+	final byte[] buffer = new byte[maxLength];
+
+	int pos = blocks[index / BLOCK];
+	int length = 0;
+
+	// Decodes the strings of the block until the one at index
+	for(int j = index - index % BLOCK;j <= index;j++) {
+
+	    final int shared = j % BLOCK == 0 ? 0 : readVarint(pos);
+	    if(j % BLOCK != 0)
+		pos += varintSize(shared);
+
+	    final int suffix = readVarint(pos);
+	    pos += varintSize(suffix);
+
+	    System.arraycopy(bytes, pos, buffer, shared, suffix);
+	    pos += suffix;
+	    length = shared + suffix;
+	}
+
+	return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a view of the strings of this set that start with the given prefix. The view shares the arrays
+     * of this set, and it is created with 2 lookups
+     *
+     * @param prefix the prefix of the strings
+     *
+     * @return the strings that start with the prefix
+     *
+     * @throws IllegalArgumentException if the prefix has an unpaired surrogate
+     *
+     * */
+    public FrontCodedSet prefixRange(String prefix) {
+
+	final byte[] low = encodeKey(prefix);
+
+	if(low.length == 0)
+	    return this;
+
+	// The lowest string greater than all the strings that start with prefix. The last byte of a UTF-8
+	// string is never 0xFF, so it can always be incremented
+	final byte[] high = low.clone();
+	high[high.length-1]++;
+
+	return range(lowerBound(low), lowerBound(high));
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+	return CODE_POINT_ORDER;
+    }
+
+    @Override
+    public String first() {
+	if(isEmpty())
+	    return null;
+	return get(0);
+    }
+
+    @Override
+    public String last() {
+	if(isEmpty())
+	    return null;
+	return get(size()-1);
+    }
+
+    /**
+     * Returns a view of the strings of this set that are lower than toElement. The view shares the arrays
+     * of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if toElement has an unpaired surrogate
+     *
+     * */
+    @Override
+    public FrontCodedSet headSet(String toElement) {
+	return range(from, lowerBound(encodeKey(toElement)));
+    }
+
+    /**
+     * Returns a view of the strings of this set in range [fromElement, toElement). The view shares the arrays
+     * of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if fromElement is greater than toElement, or any of them has an
+     * unpaired surrogate
+     *
+     * */
+    @Override
+    public FrontCodedSet subSet(String fromElement, String toElement) {
+
+	final byte[] low = encodeKey(fromElement);
+	final byte[] high = encodeKey(toElement);
+
+	if(Arrays.compareUnsigned(low, high) > 0)
+	    throw new IllegalArgumentException(fromElement + " is greater than " + toElement);
+
+	return range(lowerBound(low), lowerBound(high));
+    }
+
+    /**
+     * Returns a view of the strings of this set that are greater than or equal to fromElement. The view shares
+     * the arrays of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if fromElement has an unpaired surrogate
+     *
+     * */
+    @Override
+    public FrontCodedSet tailSet(String fromElement) {
+	return range(lowerBound(encodeKey(fromElement)), to);
+    }
+
+    // A view over the positions [low, high) of the whole set, clamped to the range of this set
+    private FrontCodedSet range(int low, int high) {
+
+	low = Math.max(from, Math.min(to, low));
+	high = Math.max(low, Math.min(to, high));
+
+	if(low == from && high == to)
+	    return this;
+
+	return new FrontCodedSet(this, low, high);
+    }
+
+    // Position of the lowest string of the whole set that is greater than or equal to key
+    private int lowerBound(byte[] key) {
+	final int index = search(key);
+	return index >= 0 ? index : -index-1;
+    }
+
+    // Position of key in the whole set, or -(insertion point)-1 if it is not in it
+    private int search(byte[] key) {
+
+	if(total == 0 || compareHead(0, key) > 0)
+	    return -1;
+
+	// Last block whose first string is lower than or equal to key
+	int low = 0;
+	int high = blocks.length-1;
+
+	while(low < high) {
+
+	    final int mid = (low+high+1) >>> 1;
+
+	    if(compareHead(mid, key) <= 0)
+		low = mid;
+	    else
+		high = mid-1;
+	}
+
+	return scanBlock(low, key);
+    }
+
+    // Compares the first string of the given block with key
+    private int compareHead(int block, byte[] key) {
+	int pos = blocks[block];
+	final int length = readVarint(pos);
+	pos += varintSize(length);
+	return Arrays.compareUnsigned(bytes, pos, pos+length, key, 0, key.length);
+    }
+
+    /*
+     * Looks for key in a block whose first string is lower than or equal to it. Each string is compared with
+     * key through the length of the prefix it shares with the previous one, which is always lower than key:
+     * if it shares less than key does, it is greater than key; if it shares more, it is lower than key, like the
+     * previous one; and only if it shares the same, the rest of its bytes have to be compared.
+     */
+    private int scanBlock(int block, byte[] key) {
+
+	final int first = block * BLOCK;
+	final int end = Math.min(total, first + BLOCK);
+
+	int pos = blocks[block];
+
+	final int headLength = readVarint(pos);
+	pos += varintSize(headLength);
+
+	// Length of the prefix that key shares with the previous string
+	int lcp = Arrays.mismatch(bytes, pos, pos+headLength, key, 0, key.length);
+
+	if(lcp < 0)
+	    return first;
+
+	pos += headLength;
+
+	for(int i = first+1;i < end;i++) {
+
+	    final int shared = readVarint(pos);
+	    pos += varintSize(shared);
+	    final int suffix = readVarint(pos);
+	    pos += varintSize(suffix);
+
+	    if(shared < lcp)
+		return -i-1;
+
+	    if(shared == lcp) {
+
+		int j = 0;
+
+		while(j < suffix && lcp+j < key.length && bytes[pos+j] == key[lcp+j]) {
+		    j++;
+		}
+
+		if(j == suffix && lcp+j == key.length)
+		    return i;
+
+		// key is a prefix of this string, or their first different byte is greater in this string
+		if(j < suffix && (lcp+j == key.length || (bytes[pos+j] & 0xFF) > (key[lcp+j] & 0xFF)))
+		    return -i-1;
+
+		lcp += j;
+	    }
+
+	    pos += suffix;
+	}
+
+	return -end-1;
+    }
+
+    // The UTF-8 bytes of a string, or null if it has an unpaired surrogate. Unlike String.getBytes, it does not
+    // replace them with '?', which would make different strings equal
+    private static byte[] encode(String s) {
+
+	try {
+	    final ByteBuffer buffer = StandardCharsets.UTF_8.newEncoder()
+		    .onMalformedInput(CodingErrorAction.REPORT)
+		    .onUnmappableCharacter(CodingErrorAction.REPORT)
+		    .encode(CharBuffer.wrap(s));
+	    return Arrays.copyOf(buffer.array(), buffer.limit());
+	} catch(CharacterCodingException ex) {
+	    return null;
+	}
+    }
+
+    // The UTF-8 bytes of a string that must be valid
+    private static byte[] encodeKey(String s) {
+
+	final byte[] key = encode(s);
+
+	if(key == null)
+	    throw new IllegalArgumentException("FrontCodedSet does not allow strings with unpaired surrogates");
+
+	return key;
+    }
+
+    // Length of the common prefix of 2 strings
+    private static int sharedPrefix(byte[] a, byte[] b) {
+	final int mismatch = Arrays.mismatch(a, b);
+	return mismatch < 0 ? a.length : mismatch;
+    }
+
+    // Writes a value in 7-bit groups, and returns the position after it
+    private static int writeVarint(byte[] out, int pos, int value) {
+	while((value & ~0x7F) != 0) {
+	    out[pos++] = (byte) ((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out[pos++] = (byte) value;
+	return pos;
+    }
+
+    private int readVarint(int pos) {
+
+	int value = 0;
+	int shift = 0;
+	byte b;
+
+	do {
+	    b = bytes[pos++];
+	    value |= (b & 0x7F) << shift;
+	    shift += 7;
+	} while(b < 0);
+
+	return value;
+    }
+
+    private static int varintSize(int value) {
+	return value < (1 << 7) ? 1 : value < (1 << 14) ? 2 : value < (1 << 21) ? 3 : value < (1 << 28) ? 4 : 5;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+	return new FrontCodedIterator();
+    }
+
+    @Override
+    public Object[] toArray() {
+
+	final Object[] result = new Object[size()];
+
+	int i = 0;
+
+	for(String s : this) {
+	    result[i++] = s;
+	}
+
+	return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+	final Object[] result = toArray();
+	return (T[]) Arrays.copyOf(result, result.length, a.getClass());
+    }
+
+    /**
+     * Returns the number of bytes of heap retained by this set. The arrays are shared with its views
+     *
+     * @return the retained bytes
+     *
+     * */
+    @Override
+    public long retainedBytes() {
+	return MemoryBudget.objectBytes(2, 5*4) + MemoryBudget.arrayBytes(bytes.length, 1)
+		+ MemoryBudget.arrayBytes(blocks.length, 4);
+    }
+
+    /**
+     * The arrays of this set are always as long as they need to be, so it has nothing to reclaim
+     *
+     * @return 0
+     *
+     * */
+    @Override
+    public long reclaimableBytes() {
+	return 0;
+    }
+
+    /**
+     * The arrays of this set are always as long as they need to be, so this method does nothing
+     *
+     * */
+    @Override
+    public void trim() {
+
+    }
+
+    /**
+     * This set is immutable, so it is never modified
+     *
+     * @return 0
+     *
+     * */
+    @Override
+    public int modCount() {
+	return 0;
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean add(String e) {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean addAll(Collection<? extends String> other) {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean remove(Object e) {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean removeAll(Collection<?> other) {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean retainAll(Collection<?> other) {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public void clear() {
+	throw new UnsupportedOperationException("FrontCodedSet is immutable");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if(obj == this)
+	    return true;
+
+	if(!(obj instanceof Set<?>))
+	    return false;
+
+	final Set<?> other = (Set<?>) obj;
+
+	if(other.size() != size())
+	    return false;
+
+	// Both are sorted the same way, so they can be compared side by side
+	if(other instanceof FrontCodedSet) {
+
+	    final Iterator<String> it = ((FrontCodedSet) other).iterator();
+
+	    for(String s : this) {
+		if(!s.equals(it.next()))
+		    return false;
+	    }
+
+	    return true;
+	}
+
+	for(Object o : other) {
+	    if(!contains(o))
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Returns the hash code of this set, which is the sum of the hash codes of its strings, as the
+     * Set interface defines it. It is computed once, since the set never changes
+     *
+     * */
+    @Override
+    public int hashCode() {
+
+	int result = hash;
+
+	if(result == 0) {
+	    for(String s : this) {
+		result += s.hashCode();
+	    }
+	    hash = result;
+	}
+
+	return result;
+    }
+
+    @Override
+    public String toString() {
+
+	final StringBuilder builder = new StringBuilder("FrontCodedSet[");
+
+	builder.append("size="+size());
+	builder.append(",bytes="+retainedBytes());
+	builder.append("] => ");
+	builder.append(Arrays.toString(toArray()));
+
+	return builder.toString();
+    }
+
+    // Comparator that compares 2 strings by their code points. For the strings without unpaired surrogates,
+    // which are the only ones the set allows, it is the order of their UTF-8 bytes
+    private static class CodePointComparator implements Comparator<String> {
+
+	@Override
+	public int compare(String s1, String s2) {
+
+	    final int length = Math.min(s1.length(), s2.length());
+
+	    for(int i = 0;i < length;i++) {
+
+		final char c1 = s1.charAt(i);
+		final char c2 = s2.charAt(i);
+
+		if(c1 != c2) {
+		    // Surrogates encode characters beyond U+FFFF, so they sort after any other char
+		    final boolean surrogate1 = Character.isSurrogate(c1);
+		    final boolean surrogate2 = Character.isSurrogate(c2);
+		    if(surrogate1 != surrogate2)
+			return surrogate1 ? 1 : -1;
+		    return c1 - c2;
+		}
+	    }
+
+	    return s1.length() - s2.length();
+	}
+
+    }
+
+    /**
+     * Iterates the strings in order, decoding each of them from the previous one
+     *
+     * */
+    private class FrontCodedIterator implements Iterator<String> {
+
+	private final byte[] buffer = new byte[maxLength];
+	private int index = from;
+	private int pos;
+
+	FrontCodedIterator() {
+
+	    if(from >= to)
+		return;
+
+	    // Decodes the strings before from within its block, so that the next one can be decoded
+	    pos = blocks[from / BLOCK];
+
+	    for(int j = from - from % BLOCK;j < from;j++) {
+		decode(j);
+	    }
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return index < to;
+	}
+
+	@Override
+	public String next() {
+	    if(index >= to)
+		throw new NoSuchElementException();
+	    final int length = decode(index++);
+	    return new String(buffer, 0, length, StandardCharsets.UTF_8);
+	}
+
+	// Decodes the string at the given position into the buffer, and returns its length
+	private int decode(int j) {
+
+	    final int shared = j % BLOCK == 0 ? 0 : readVarint(pos);
+	    if(j % BLOCK != 0)
+		pos += varintSize(shared);
+
+	    final int suffix = readVarint(pos);
+	    pos += varintSize(suffix);
+
+	    System.arraycopy(bytes, pos, buffer, shared, suffix);
+	    pos += suffix;
+
+	    return shared + suffix;
+	}
+
+    }
+
+}
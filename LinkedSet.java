@@ -1,6 +1,8 @@
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 
@@ -13,11 +15,17 @@ import java.util.Set;
  * @author Cristian Herrera^2
  * @version 16/2/2018 
  */
-public class LinkedSet<E> implements Set<E> {
+public class LinkedSet<E> implements Set<E>, MemoryFootprint {
     
     private Node front;
     private Node rear;
     private int size;
+    // Optional filter that answers most of the lookups of elements that are not in this set
+    private CountingBloomFilter filter;
+    // Number of insertions and removals, used to tell whether this set has been idle
+    private int modCount = 0;
+    // Sum of the hash codes of the elements, as the Set interface defines the hash code of a set
+    private int hash = 0;
     
     public LinkedSet() {
 	front = rear = null;
@@ -35,17 +43,23 @@ public class LinkedSet<E> implements Set<E> {
 	final boolean found = !contains(e);
         
         if(found) {
-            if(size == 0) {
-        	front = new Node(e, null);
-        	rear = front;
-            } else {
-        	final Node node = new Node(e, front);
-                front = node;
-            }
-            size++;
+	    linkFirst(e);
         }
         return found;
     }
+    
+    // Inserts e at the front without checking whether it is already in this set, so it must be known to be new.
+    // DurableLinkedSet uses it to load its snapshot in O(n) instead of O(n^2)
+    void linkFirst(E e) {
+	if(size == 0) {
+	    front = new Node(e, null);
+	    rear = front;
+	} else {
+	    front = new Node(e, front);
+	}
+	size++;
+	inserted(e);
+    }
 
     @Override
     public boolean addAll(Collection<? extends E> other) {
@@ -62,11 +76,25 @@ public class LinkedSet<E> implements Set<E> {
     public void clear() {
 	front = rear = null;
 	size = 0;
+	++modCount;
+	hash = 0;
+	if(filter != null)
+	    filter.clear();
     }
 
     @Override
     public boolean contains(Object obj) {
 	
+	// null is never in this set, and it has no hash code to probe the filter with
+	if(filter != null && obj != null) {
+	    
+	    if(filter.needsRebuild())
+		rebuildFilter();
+	    
+	    if(!filter.mightContain(obj.hashCode()))
+		return false;
+	}
+	
 	Node a = front;
 	Node z = rear;
 	
@@ -92,6 +120,52 @@ public class LinkedSet<E> implements Set<E> {
 	
 	return true;
     }
+    
+    /**
+     * Checks a batch of keys at once, in a single traversal of the set. The keys are indexed
+     * by their hash codes first, so each node is checked against all of them in one search
+     * 
+     * @param keys the keys to look up
+     * @param out the bit i of out is set if keys[i] is in this set, and cleared otherwise
+     * 
+     * @return true if all the keys are in this set, false otherwise
+     * 
+     * */
+    public boolean containsAll(Object[] keys, BitSet out) {
+	
+	out.clear(0, keys.length);
+	
+	// Each probe is its hash code in the high half and its position in the low half,
+	// so sorting them groups the probes with the same hash code
+	final long[] probes = new long[keys.length];
+	
+	for(int i = 0;i < keys.length;i++) {
+	    probes[i] = ((long) keys[i].hashCode() << 32) | i;
+	}
+	
+	Arrays.sort(probes);
+	
+	int found = 0;
+	
+	for(Node node = front;node != null && found < keys.length;node = node.next) {
+	    
+	    final int hash = node.data.hashCode();
+	    int i = Arrays.binarySearch(probes, (long) hash << 32);
+	    
+	    if(i < 0)
+		i = -(i+1);
+	    
+	    for(;i < probes.length && (int) (probes[i] >> 32) == hash;i++) {
+		final int k = (int) probes[i];
+		if(!out.get(k) && node.equals(keys[k])) {
+		    out.set(k);
+		    found++;
+		}
+	    }
+	}
+	
+	return found == keys.length;
+    }
 
     @Override
     public boolean isEmpty() {
@@ -114,20 +188,10 @@ public class LinkedSet<E> implements Set<E> {
 	for(int i = 0;i < limit;i++,a=a.next,z=z.prev) {
 	    
 	    if(a.equals(obj)) {
-		if(a == front) {
-		    front = a.next;
-		} else {
-		    a.prev.next = a.next;
-		}
-		size--;
+		unlink(a);
 		return true;
 	    } else if(z.equals(obj)) {
-		if(z == rear) {
-		    rear = z.prev;
-		} else {
-		    z.next.prev = z.prev;
-		}
-		size--;
+		unlink(z);
 		return true;
 	    }
 	    
@@ -135,6 +199,25 @@ public class LinkedSet<E> implements Set<E> {
 	}
 	return false;
     }
+    
+    // Removes the node from the list, linking its neighbours with each other
+    private void unlink(Node node) {
+	
+	if(node.prev == null) {
+	    front = node.next;
+	} else {
+	    node.prev.next = node.next;
+	}
+	
+	if(node.next == null) {
+	    rear = node.prev;
+	} else {
+	    node.next.prev = node.prev;
+	}
+	
+	size--;
+	removed(node.data);
+    }
 
     @Override
     public boolean removeAll(Collection<?> other) {
@@ -198,6 +281,318 @@ public class LinkedSet<E> implements Set<E> {
         return (T[]) toArray();
     }
     
+    /**
+     * Compares this set with another one following the contract of the Set interface. Sets with a different
+     * size, or LinkedSets and ArraySets with a different hash code, are rejected immediately. Otherwise every
+     * element of the other set is looked up
+     * 
+     * */
+    @Override
+    public boolean equals(Object obj) {
+	
+	if(obj == this)
+	    return true;
+	
+	if(!(obj instanceof Set<?>))
+	    return false;
+	
+	final Set<?> other = (Set<?>) obj;
+	
+	if(other.size() != size)
+	    return false;
+	
+	// Their hash codes take O(1)
+	if((other instanceof LinkedSet<?> || other instanceof ArraySet<?>) && other.hashCode() != hash)
+	    return false;
+	
+	return containsAll(other.toArray(), new BitSet(size));
+    }
+    
+    /**
+     * Returns the hash code of this set, which is the sum of the hash codes of its elements, as the
+     * Set interface defines it. It is kept up to date on every insertion and removal, so it takes O(1)
+     * 
+     * */
+    @Override
+    public int hashCode() {
+	return hash;
+    }
+    
+    /**
+     * Attaches a counting Bloom filter to this LinkedSet, so that most of the lookups of elements that are not
+     * in the set return without traversing it. The filter is maintained automatically on every add and remove,
+     * and it is rebuilt when it holds more elements than expected or after heavy deletion
+     * 
+     * @param falsePositiveRate the desired false positive rate of the filter, in range (0, 1)
+     * 
+     * @throws IllegalArgumentException if falsePositiveRate is out of range
+     * 
+     * */
+    public void enableFilter(double falsePositiveRate) {
+	filter = new CountingBloomFilter(0, falsePositiveRate);
+	rebuildFilter();
+    }
+    
+    /**
+     * Detaches the membership filter of this LinkedSet, if any
+     * 
+     * */
+    public void disableFilter() {
+	filter = null;
+    }
+    
+    /**
+     * Returns the membership filter of this LinkedSet, which may be used to check its saturation.
+     * It must not be modified.
+     * 
+     * @return the membership filter, or null if this set has not got any
+     * 
+     * */
+    public CountingBloomFilter filter() {
+	return filter;
+    }
+    
+    // Resizes the filter for twice the current size and adds all the elements again
+    private void rebuildFilter() {
+	
+	filter.reset(Math.max(size, 10) << 1);
+	
+	for(Node node = front;node != null;node = node.next) {
+	    filter.add(node.data.hashCode());
+	}
+    }
+    
+    /**
+     * Returns the estimated number of bytes of heap retained by this LinkedSet: the object itself, its nodes
+     * and the membership filter. The elements are not included
+     * 
+     * @return the retained bytes
+     * 
+     * */
+    @Override
+    public long retainedBytes() {
+	
+	// Each node holds its data, both pointers and a reference to this set
+	long bytes = MemoryBudget.objectBytes(3, 3*4) + size * MemoryBudget.objectBytes(4, 0);
+	
+	if(filter != null)
+	    bytes += filter.retainedBytes();
+	
+	return bytes;
+    }
+    
+    /**
+     * Returns the estimated number of bytes that trim would give back. The nodes are always as many as
+     * the elements, so only an oversized membership filter can be reclaimed
+     * 
+     * @return the reclaimable bytes
+     * 
+     * */
+    @Override
+    public long reclaimableBytes() {
+	
+	if(filter == null)
+	    return 0;
+	
+	final long current = filter.retainedBytes();
+	final long rebuilt = CountingBloomFilter.retainedBytes(Math.max(size, 10) << 1, filter.falsePositiveRate());
+	
+	// Only worth it if rebuilding the filter at least halves it
+	return rebuilt <= current >>> 1 ? current - rebuilt : 0;
+    }
+    
+    /**
+     * Shrinks the membership filter if it was sized for many more elements than this set holds
+     * 
+     * */
+    @Override
+    public void trim() {
+	if(reclaimableBytes() > 0)
+	    rebuildFilter();
+    }
+    
+    @Override
+    public int modCount() {
+	return modCount;
+    }
+    
+    // Called every time an element is inserted into this set
+    private void inserted(Object e) {
+	++modCount;
+	hash += e.hashCode();
+	if(filter != null)
+	    filter.add(e.hashCode());
+    }
+    
+    // Called every time an element is removed from this set
+    private void removed(Object e) {
+	++modCount;
+	hash -= e.hashCode();
+	if(filter != null)
+	    filter.remove(e.hashCode());
+    }
+    
+    /**
+     * A reusable cursor over the elements of a LinkedSet. Unlike an iterator, it can seek to any element, move
+     * in both directions and be reset to another set, so a single cursor can be used for any number of scans
+     * without allocating anything. Forward is the order of the iterator, from the newest element to the oldest.
+     * 
+     * When it is not positioned at an element, the cursor is either before the start or past the end, like the
+     * one of ArraySet, so it can always move back into the set. If the element the cursor is positioned at is
+     * removed, the cursor must be repositioned before using it again
+     * 
+     * */
+    public static class Cursor<E> {
+	
+	private LinkedSet<E> set;
+	private LinkedSet<E>.Node node;
+	// When node is null, whether the cursor is before the start (true) or past the end (false)
+	private boolean beforeStart;
+	
+	/**
+	 * Constructs a cursor that is not bound to any set. It must be reset before using it
+	 * 
+	 * */
+	public Cursor() {
+	    
+	}
+	
+	/**
+	 * Constructs a cursor positioned at the first element of the given set
+	 * 
+	 * @param set the set to iterate
+	 * 
+	 * */
+	public Cursor(LinkedSet<E> set) {
+	    reset(set);
+	}
+	
+	/**
+	 * Binds this cursor to the given set and positions it at its first element
+	 * 
+	 * @param set the set to iterate
+	 * 
+	 * @return this cursor
+	 * 
+	 * */
+	public Cursor<E> reset(LinkedSet<E> set) {
+	    if(set == null)
+		throw new NullPointerException("Set cannot be null");
+	    this.set = set;
+	    node = set.front;
+	    beforeStart = false;
+	    return this;
+	}
+	
+	/**
+	 * Positions this cursor at the given element. If it is not in the set, the cursor is left past the end
+	 * 
+	 * @param key the element to look for
+	 * 
+	 * @return true if the element is in the set, false otherwise
+	 * 
+	 * */
+	public boolean seek(Object key) {
+	    
+	    beforeStart = false;
+	    
+	    if(key == null || (set.filter != null && !set.filter.mightContain(key.hashCode()))) {
+		node = null;
+		return false;
+	    }
+	    
+	    LinkedSet<E>.Node n = set.front;
+	    
+	    while(n != null && !n.equals(key)) {
+		n = n.next;
+	    }
+	    
+	    node = n;
+	    return n != null;
+	}
+	
+	/**
+	 * Positions this cursor at the first element of the set. If it is empty, the cursor is left past the end
+	 * 
+	 * @return true if the set is not empty, false otherwise
+	 * 
+	 * */
+	public boolean first() {
+	    node = set.front;
+	    beforeStart = false;
+	    return node != null;
+	}
+	
+	/**
+	 * Positions this cursor at the last element of the set. If it is empty, the cursor is left before the start
+	 * 
+	 * @return true if the set is not empty, false otherwise
+	 * 
+	 * */
+	public boolean last() {
+	    node = set.rear;
+	    beforeStart = node == null;
+	    return node != null;
+	}
+	
+	/**
+	 * Moves this cursor to the next element. If it is before the start, it moves to the first element,
+	 * and if it is past the end, it stays there
+	 * 
+	 * @return true if the cursor is at an element after moving, false if it went past the end
+	 * 
+	 * */
+	public boolean next() {
+	    if(node != null)
+		node = node.next;
+	    else if(beforeStart)
+		node = set.front;
+	    beforeStart = false;
+	    return node != null;
+	}
+	
+	/**
+	 * Moves this cursor to the previous element. If it is past the end, it moves to the last element,
+	 * and if it is before the start, it stays there
+	 * 
+	 * @return true if the cursor is at an element after moving, false if it went before the start
+	 * 
+	 * */
+	public boolean previous() {
+	    if(node != null)
+		node = node.prev;
+	    else if(!beforeStart)
+		node = set.rear;
+	    beforeStart = node == null;
+	    return node != null;
+	}
+	
+	/**
+	 * Returns whether this cursor is positioned at an element
+	 * 
+	 * @return true if there is a current element, false otherwise
+	 * 
+	 * */
+	public boolean isValid() {
+	    return node != null;
+	}
+	
+	/**
+	 * Returns the element this cursor is positioned at
+	 * 
+	 * @return the current element
+	 * 
+	 * @throws NoSuchElementException if the cursor is not positioned at an element
+	 * 
+	 * */
+	public E current() {
+	    if(node == null)
+		throw new NoSuchElementException("¡The cursor is not positioned at an element!");
+	    return node.data;
+	}
+	
+    }
+    
     /**
      * A basic iterator over the elements of the set. The elements are returned like in
      * a Stack (First Input Last Output) 
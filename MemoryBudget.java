@@ -0,0 +1,297 @@
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ * A registry that tracks the heap retained by many collections and keeps it under a budget. Sets such as
+ * ArraySet keep their internal arrays after a burst of insertions, even when most of their elements are
+ * removed later, so a program with thousands of them may retain much more memory than it needs.
+ *
+ * When enforce is called and the total retained bytes exceed the budget, the registry trims the collections
+ * until the total fits, starting with the idle ones (those that have not been modified since the previous call)
+ * that can give back the most memory. The collections are referenced weakly, so registering one does not
+ * keep it alive.
+ *
+ * The registry itself is thread safe, but enforce trims the collections, so it must not be called while they
+ * are being modified by other threads.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class MemoryBudget {
+
+    /** FIELDS */
+
+    // Size of the header of an object and of an array, and of a reference, with compressed references
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    static final int REFERENCE = 4;
+
+    // The registered collections
+    private final List<Tracked> tracked = new ArrayList<>();
+    // Maximum number of bytes the registered collections should retain
+    private long budget;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs a new registry with the given budget
+     *
+     * @param budget the maximum number of bytes the registered collections should retain
+     *
+     * @throws IllegalArgumentException if budget is not positive
+     *
+     * */
+    public MemoryBudget(long budget) {
+	setBudget(budget);
+    }
+
+    /**
+     * Registers a collection in this registry
+     *
+     * @param collection the collection to track
+     *
+     * @return the same collection
+     *
+     * @throws NullPointerException if collection is null
+     *
+     * */
+    public synchronized <T extends MemoryFootprint> T register(T collection) {
+	if(collection == null)
+	    throw new NullPointerException("Collection cannot be null");
+	tracked.add(new Tracked(collection));
+	return collection;
+    }
+
+    /**
+     * Stops tracking a collection
+     *
+     * @param collection the collection to stop tracking
+     *
+     * @return true if the collection was registered, false otherwise
+     *
+     * */
+    public synchronized boolean unregister(MemoryFootprint collection) {
+
+	for(Iterator<Tracked> it = tracked.iterator();it.hasNext();) {
+
+	    final MemoryFootprint c = it.next().get();
+
+	    if(c == null) {
+		it.remove();
+	    } else if(c == collection) {
+		it.remove();
+		return true;
+	    }
+	}
+
+	return false;
+    }
+
+    /**
+     * Returns the number of registered collections that are still alive
+     *
+     * @return the number of tracked collections
+     *
+     * */
+    public synchronized int size() {
+	purge();
+	return tracked.size();
+    }
+
+    /**
+     * Returns the maximum number of bytes the registered collections should retain
+     *
+     * @return the budget
+     *
+     * */
+    public synchronized long budget() {
+	return budget;
+    }
+
+    /**
+     * Sets the maximum number of bytes the registered collections should retain. It is not enforced until
+     * enforce is called
+     *
+     * @param budget the new budget
+     *
+     * @throws IllegalArgumentException if budget is not positive
+     *
+     * */
+    public synchronized void setBudget(long budget) {
+	if(budget <= 0)
+	    throw new IllegalArgumentException("Budget must be > 0");
+	this.budget = budget;
+    }
+
+    /**
+     * Returns the total number of bytes retained by the registered collections
+     *
+     * @return the retained bytes
+     *
+     * */
+    public synchronized long retainedBytes() {
+
+	long total = 0;
+
+	for(Iterator<Tracked> it = tracked.iterator();it.hasNext();) {
+
+	    final MemoryFootprint c = it.next().get();
+
+	    if(c == null)
+		it.remove();
+	    else
+		total += c.retainedBytes();
+	}
+
+	return total;
+    }
+
+    /**
+     * Returns the total number of bytes the registered collections would give back if all of them were trimmed
+     *
+     * @return the reclaimable bytes
+     *
+     * */
+    public synchronized long reclaimableBytes() {
+
+	long total = 0;
+
+	for(Iterator<Tracked> it = tracked.iterator();it.hasNext();) {
+
+	    final MemoryFootprint c = it.next().get();
+
+	    if(c == null)
+		it.remove();
+	    else
+		total += c.reclaimableBytes();
+	}
+
+	return total;
+    }
+
+    /**
+     * Trims the registered collections until the total retained bytes fit in the budget, or there is nothing
+     * left to trim. The idle collections are trimmed first, and among them, the ones that give back more memory.
+     * If the total already fits, nothing is trimmed. Trimming a collection does not modify it, so a collection
+     * trimmed here is still idle in the next call, unless it is modified in between
+     *
+     * @return the number of bytes given back
+     *
+     * */
+    public synchronized long enforce() {
+
+	final List<Candidate> candidates = new ArrayList<>();
+	long total = 0;
+
+	for(Iterator<Tracked> it = tracked.iterator();it.hasNext();) {
+
+	    final Tracked t = it.next();
+	    final MemoryFootprint c = t.get();
+
+	    if(c == null) {
+		it.remove();
+		continue;
+	    }
+
+	    total += c.retainedBytes();
+
+	    final long reclaimable = c.reclaimableBytes();
+	    if(reclaimable > 0)
+		candidates.add(new Candidate(t, c, reclaimable));
+	}
+
+	long reclaimed = 0;
+
+	if(total > budget) {
+
+	    candidates.sort((a, b) -> a.idle != b.idle ? (a.idle ? -1 : 1) : Long.compare(b.reclaimable, a.reclaimable));
+
+	    for(Candidate candidate : candidates) {
+
+		if(total <= budget)
+		    break;
+
+		final long before = candidate.collection.retainedBytes();
+		candidate.collection.trim();
+		final long freed = before - candidate.collection.retainedBytes();
+
+		total -= freed;
+		reclaimed += freed;
+	    }
+	}
+
+	// Whatever is modified from now on is not idle in the next call. The count is read after trimming, so
+	// it stays idle even if a collection counts its own trim as a modification
+	for(Tracked t : tracked) {
+	    final MemoryFootprint c = t.get();
+	    if(c != null)
+		t.modCount = c.modCount();
+	}
+
+	return reclaimed;
+    }
+
+    // Removes the collections that have been garbage collected
+    private void purge() {
+	tracked.removeIf(t -> t.get() == null);
+    }
+
+    // Estimated size of an object with the given number of references and bytes of primitive fields
+    static long objectBytes(int references, int primitiveBytes) {
+	return align(OBJECT_HEADER + (long) references * REFERENCE + primitiveBytes);
+    }
+
+    // Estimated size of an array with the given length and size of its elements
+    static long arrayBytes(int length, int elementBytes) {
+	return align(ARRAY_HEADER + (long) length * elementBytes);
+    }
+
+    // Objects are aligned to 8 bytes
+    private static long align(long bytes) {
+	return (bytes + 7) & ~7L;
+    }
+
+    @Override
+    public synchronized String toString() {
+	return "MemoryBudget[collections="+size()+",budget="+budget+",retained="+retainedBytes()+"]";
+    }
+
+    /**
+     * A weak reference to a registered collection, with its modification count when it was last checked
+     *
+     * */
+    private static class Tracked extends WeakReference<MemoryFootprint> {
+
+	int modCount;
+
+	Tracked(MemoryFootprint collection) {
+	    super(collection);
+	    modCount = collection.modCount();
+	}
+
+    }
+
+    /**
+     * A collection that could be trimmed in the current call to enforce
+     *
+     * */
+    private static class Candidate {
+
+	final MemoryFootprint collection;
+	final long reclaimable;
+	final boolean idle;
+
+	Candidate(Tracked tracked, MemoryFootprint collection, long reclaimable) {
+	    this.collection = collection;
+	    this.reclaimable = reclaimable;
+	    this.idle = tracked.modCount == collection.modCount();
+	}
+
+    }
+
+}
@@ -0,0 +1,43 @@
+/**
+ * A collection that can report how much heap it retains, and give back the part of it that it does not need.
+ * The sizes are estimates for a 64-bit JVM with compressed references, and they do not include the elements
+ * themselves, which are shared with the rest of the program.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public interface MemoryFootprint {
+
+    /**
+     * Returns the estimated number of bytes of heap retained by this collection, without its elements
+     *
+     * @return the retained bytes
+     *
+     * */
+    long retainedBytes();
+
+    /**
+     * Returns the estimated number of bytes that trim would give back
+     *
+     * @return the reclaimable bytes
+     *
+     * */
+    long reclaimableBytes();
+
+    /**
+     * Releases the memory this collection holds but does not need for its current elements. It does not change
+     * the elements, so it must not change the modification count either
+     *
+     * */
+    void trim();
+
+    /**
+     * Returns the number of structural modifications of this collection. It only needs to change when the
+     * collection is modified, so it can tell whether the collection has been idle since it was last read
+     *
+     * @return the modification count
+     *
+     * */
+    int modCount();
+
+}
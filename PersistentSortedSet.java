@@ -0,0 +1,889 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+
+
+/**
+ * An immutable sorted set that shares its structure between versions. It provides the same queries as ArraySet
+ * (indexOf, direct access to its elements, range views and 2 iterators), but it cannot be modified. Instead,
+ * the methods with and without return a new version of the set in O(log n), which shares all but a path of nodes
+ * with the old one. That makes taking a snapshot of the set free: any version can be handed to other threads,
+ * and it will never change. It does not allow null elements.
+ *
+ * Internally it is a B-tree whose nodes know how many elements they hold, so the position of an element and the
+ * element at a position are found in O(log n) too. Range views (headSet, subSet and tailSet) share the tree with
+ * the set they come from and are created in O(log n).
+ *
+ * By default, the hash code of the elements is used to sort them, like in ArraySet.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class PersistentSortedSet<E> implements SortedSet<E> {
+
+    /** FIELDS */
+
+    // Maximum number of elements of a leaf, or children of a branch
+    private static final int MAX_WIDTH = 32;
+    // Width under which a node is merged with one of its siblings
+    private static final int MIN_WIDTH = MAX_WIDTH / 4;
+    // The empty tree
+    private static final Node EMPTY = new Leaf(new Object[0]);
+
+    // Root of the tree. It may contain elements out of the range of this set if it is a view
+    private final Node root;
+    // Comparator that performs the sortering job in this set
+    private final Comparator<Object> comparator;
+    // Lowest element allowed in this set (inclusive), or null if it has no lower bound
+    private final Object lowBound;
+    // Highest element allowed in this set (exclusive), or null if it has no upper bound
+    private final Object highBound;
+    // Range of positions of the tree that belong to this set
+    private final int from;
+    private final int to;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs an empty PersistentSortedSet that sorts its elements by their hash codes
+     *
+     * */
+    public PersistentSortedSet() {
+	this(new ArraySet.HashComparator());
+    }
+
+    /**
+     * Constructs an empty PersistentSortedSet with the specified comparator.
+     *
+     * @throws NullPointerException if the comparator is null
+     *
+     * */
+    public PersistentSortedSet(Comparator<Object> comparator) {
+	this(EMPTY, checkComparator(comparator), null, null);
+    }
+
+    /**
+     * Returns a PersistentSortedSet with all the elements of the given collection, sorted by their hash codes.
+     * It is built in a single pass once the elements are sorted
+     *
+     * */
+    public PersistentSortedSet(final Collection<? extends E> other) {
+	this(other, new ArraySet.HashComparator());
+    }
+
+    /**
+     * Returns a PersistentSortedSet with all the elements of the given collection, sorted by the given comparator.
+     * It is built in a single pass once the elements are sorted
+     *
+     * @throws NullPointerException if the comparator is null
+     *
+     * */
+    public PersistentSortedSet(final Collection<? extends E> other, Comparator<Object> comparator) {
+	this(build(other.toArray(), checkComparator(comparator)), comparator, null, null);
+    }
+
+    private PersistentSortedSet(Node root, Comparator<Object> comparator, Object lowBound, Object highBound) {
+	this.root = root;
+	this.comparator = comparator;
+	this.lowBound = lowBound;
+	this.highBound = highBound;
+	this.from = lowBound == null ? 0 : ceiling(root, lowBound, comparator);
+	this.to = highBound == null ? root.size() : ceiling(root, highBound, comparator);
+    }
+
+    /**
+     * Returns a new version of this set that also contains e. This set does not change
+     *
+     * @param e the element to add
+     *
+     * @return a set with all the elements of this one and e, or this set if e is already in it
+     *
+     * @throws IllegalArgumentException if this set is a range view and e is out of its range
+     *
+     * */
+    public PersistentSortedSet<E> with(E e) {
+
+	if(!inRange(e))
+	    throw new IllegalArgumentException(e + " is out of the range of this set");
+
+	final Node[] nodes = root.insert(e, comparator);
+
+	// e is already in this set
+	if(nodes == null)
+	    return this;
+
+	final Node newRoot = nodes.length == 1 ? nodes[0] : new Branch(nodes);
+
+	return new PersistentSortedSet<>(newRoot, comparator, lowBound, highBound);
+    }
+
+    /**
+     * Returns a new version of this set that also contains all the elements of the given collection.
+     * This set does not change
+     *
+     * @param other the elements to add
+     *
+     * @return a set with all the elements of this one and other
+     *
+     * @throws IllegalArgumentException if this set is a range view and any element is out of its range
+     *
+     * */
+    public PersistentSortedSet<E> withAll(Collection<? extends E> other) {
+
+	PersistentSortedSet<E> set = this;
+
+	for(E e : other) {
+	    set = set.with(e);
+	}
+
+	return set;
+    }
+
+    /**
+     * Returns a new version of this set that does not contain e. This set does not change
+     *
+     * @param e the element to remove
+     *
+     * @return a set with all the elements of this one but e, or this set if e is not in it
+     *
+     * */
+    public PersistentSortedSet<E> without(Object e) {
+
+	if(!inRange(e))
+	    return this;
+
+	Node newRoot = root.remove(e, comparator);
+
+	// e is not in this set
+	if(newRoot == root)
+	    return this;
+
+	// The root is replaced by its only child while it has got just one
+	while(newRoot instanceof Branch && newRoot.width() == 1) {
+	    newRoot = ((Branch) newRoot).children[0];
+	}
+
+	return new PersistentSortedSet<>(newRoot, comparator, lowBound, highBound);
+    }
+
+    /**
+     * Returns a new version of this set that does not contain any element of the given collection.
+     * This set does not change
+     *
+     * @param other the elements to remove
+     *
+     * @return a set with all the elements of this one but the ones in other
+     *
+     * */
+    public PersistentSortedSet<E> withoutAll(Collection<?> other) {
+
+	PersistentSortedSet<E> set = this;
+
+	for(Object e : other) {
+	    set = set.without(e);
+	}
+
+	return set;
+    }
+
+    @Override
+    public int size() {
+	return to - from;
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return from == to;
+    }
+
+    /**
+     * Returns the index of the given object if it is present within the set. Otherwise, this method
+     * will give the position + 1 at which this object should be if it were inside the set as a negative number,
+     * like ArraySet does
+     *
+     * @param {@link Object} the object in question
+     *
+     * @return {@code int} the index of the object passed, or the position at which it should be as a negative number
+     *
+     * */
+    public int indexOf(Object e) {
+
+	if(lowBound != null && comparator.compare(e, lowBound) < 0)
+	    return -1;
+	if(highBound != null && comparator.compare(e, highBound) >= 0)
+	    return -size()-1;
+
+	final int index = root.indexOf(e, comparator);
+
+	return index >= 0 ? index - from : index + from;
+    }
+
+    @Override
+    public boolean contains(Object obj) {
+	return indexOf(obj) >= 0;
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> other) {
+
+	for(Object obj : other) {
+	    if(!contains(obj))
+		return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Returns the element at the specified position, in O(log n)
+     *
+     * @param index where the element is
+     *
+     * @return the element at given position
+     *
+     * @throws <code> ArrayIndexOutOfBoundException </code> if the position is out of range
+     *
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+
+	if(i < 0 || i >= size())
+	    throw new ArrayIndexOutOfBoundsException(i + " is out of range [0,"+size()+")");
+
+	return (E) root.get(from + i);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+	return new ForwardIterator();
+    }
+
+    /**
+     * Returns an iterator that iterates this set in reversed order
+     *
+     * @return a reverse iterator over the set
+     *
+     * */
+    public Iterator<E> reversedIterator() {
+	return new BackwardIterator();
+    }
+
+    @Override
+    public Comparator<? super E> comparator() {
+	return comparator;
+    }
+
+    @Override
+    public E first() {
+	if(isEmpty())
+	    return null;
+	return get(0);
+    }
+
+    @Override
+    public E last() {
+	if(isEmpty())
+	    return null;
+	return get(size()-1);
+    }
+
+    /**
+     * Returns a view of the elements of this set that are lower than toElement. The view shares the tree
+     * of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if toElement is out of the range of this set
+     *
+     * */
+    @Override
+    public PersistentSortedSet<E> headSet(E toElement) {
+	return view(lowBound, toElement);
+    }
+
+    /**
+     * Returns a view of the elements of this set in range [fromElement, toElement). The view shares the tree
+     * of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if fromElement is greater than toElement, or any of them is out of
+     * the range of this set
+     *
+     * */
+    @Override
+    public PersistentSortedSet<E> subSet(E fromElement, E toElement) {
+
+	if(comparator.compare(fromElement, toElement) > 0)
+	    throw new IllegalArgumentException(fromElement + " is greater than " + toElement);
+
+	return view(fromElement, toElement);
+    }
+
+    /**
+     * Returns a view of the elements of this set that are greater than or equal to fromElement. The view shares
+     * the tree of this set and is created in O(log n)
+     *
+     * @throws IllegalArgumentException if fromElement is out of the range of this set
+     *
+     * */
+    @Override
+    public PersistentSortedSet<E> tailSet(E fromElement) {
+	return view(fromElement, highBound);
+    }
+
+    private PersistentSortedSet<E> view(Object low, Object high) {
+
+	if(low != lowBound && !inRange(low))
+	    throw new IllegalArgumentException(low + " is out of the range of this set");
+
+	if(high != highBound && !inRange(high)
+		&& !(highBound != null && comparator.compare(high, highBound) == 0))
+	    throw new IllegalArgumentException(high + " is out of the range of this set");
+
+	return new PersistentSortedSet<>(root, comparator, low, high);
+    }
+
+    private boolean inRange(Object e) {
+	return (lowBound == null || comparator.compare(e, lowBound) >= 0)
+		&& (highBound == null || comparator.compare(e, highBound) < 0);
+    }
+
+    @Override
+    public Object[] toArray() {
+
+	final Object[] result = new Object[size()];
+
+	int i = 0;
+
+	for(E e : this) {
+	    result[i++] = e;
+	}
+
+	return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+	final Object[] result = toArray();
+	return (T[]) Arrays.copyOf(result, result.length, a.getClass());
+    }
+
+    /**
+     * This set is immutable, use with instead
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean add(E e) {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable, use with instead");
+    }
+
+    /**
+     * This set is immutable, use withAll instead
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean addAll(Collection<? extends E> other) {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable, use withAll instead");
+    }
+
+    /**
+     * This set is immutable, use without instead
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean remove(Object e) {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable, use without instead");
+    }
+
+    /**
+     * This set is immutable, use withoutAll instead
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean removeAll(Collection<?> other) {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable, use withoutAll instead");
+    }
+
+    /**
+     * This set is immutable
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public boolean retainAll(Collection<?> other) {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable");
+    }
+
+    /**
+     * This set is immutable, use a new empty set instead
+     *
+     * @throws UnsupportedOperationException always
+     *
+     * */
+    @Override
+    public void clear() {
+	throw new UnsupportedOperationException("PersistentSortedSet is immutable");
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if(obj == this)
+	    return true;
+
+	if(!(obj instanceof Set<?>))
+	    return false;
+
+	final Set<?> other = (Set<?>) obj;
+
+	return other.size() == size() && containsAll(other);
+    }
+
+    @Override
+    public int hashCode() {
+	int result = 0;
+
+	for(E e : this) {
+	    result += e.hashCode();
+	}
+
+	return result;
+    }
+
+    @Override
+    public String toString() {
+	return "PersistentSortedSet[size="+size()+"] => " + Arrays.toString(toArray());
+    }
+
+    private static Comparator<Object> checkComparator(Comparator<Object> comparator) {
+	if(comparator == null)
+	    throw new NullPointerException("Comparator cannot be null!");
+	return comparator;
+    }
+
+    // Returns the position of the first element of the tree that is greater than or equal to e
+    private static int ceiling(Node root, Object e, Comparator<Object> comparator) {
+	final int index = root.indexOf(e, comparator);
+	return index >= 0 ? index : -(index+1);
+    }
+
+    // Builds a tree with the given elements, bottom up, with full nodes
+    private static Node build(Object[] elements, Comparator<Object> comparator) {
+
+	Arrays.sort(elements, comparator);
+
+	// Discard the repeated elements
+	int n = 0;
+
+	for(int i = 0;i < elements.length;i++) {
+	    if(n == 0 || comparator.compare(elements[i], elements[n-1]) != 0)
+		elements[n++] = elements[i];
+	}
+
+	if(n == 0)
+	    return EMPTY;
+
+	Node[] level = new Node[(n + MAX_WIDTH - 1) / MAX_WIDTH];
+
+	for(int i = 0;i < level.length;i++) {
+	    level[i] = new Leaf(Arrays.copyOfRange(elements, i * MAX_WIDTH, Math.min(n, (i+1) * MAX_WIDTH)));
+	}
+
+	while(level.length > 1) {
+
+	    final Node[] upper = new Node[(level.length + MAX_WIDTH - 1) / MAX_WIDTH];
+
+	    for(int i = 0;i < upper.length;i++) {
+		upper[i] = new Branch(Arrays.copyOfRange(level, i * MAX_WIDTH, Math.min(level.length, (i+1) * MAX_WIDTH)));
+	    }
+
+	    level = upper;
+	}
+
+	return level[0];
+    }
+
+    // Returns 1 node with all the given elements, or 2 nodes with half of them each if they do not fit in one
+    private static Object[][] split(Object[] elements) {
+
+	if(elements.length <= MAX_WIDTH)
+	    return new Object[][] {elements};
+
+	final int half = elements.length >>> 1;
+
+	return new Object[][] {Arrays.copyOfRange(elements, 0, half), Arrays.copyOfRange(elements, half, elements.length)};
+    }
+
+    private static Object[] concat(Object[] left, Object[] right) {
+	final Object[] result = Arrays.copyOf(left, left.length + right.length);
+	System.arraycopy(right, 0, result, left.length, right.length);
+	return result;
+    }
+
+    /**
+     * A node of the tree. Nodes are never modified once they are created, so they can be shared by any number of sets
+     *
+     * */
+    private static abstract class Node {
+
+	// Number of elements below this node
+	abstract int size();
+
+	// Number of elements of a leaf, or children of a branch
+	abstract int width();
+
+	abstract Object first();
+
+	abstract Object get(int index);
+
+	// Position of e below this node, or -(insertion point)-1 if it is not there
+	abstract int indexOf(Object e, Comparator<Object> comparator);
+
+	// Returns the nodes that replace this one after inserting e (1, or 2 if it is split), or null if e is already here
+	abstract Node[] insert(Object e, Comparator<Object> comparator);
+
+	// Returns the node that replaces this one after removing e, or this node if e is not here
+	abstract Node remove(Object e, Comparator<Object> comparator);
+
+	// Returns the nodes with the contents of this node and its right sibling (1, or 2 if they do not fit in one)
+	abstract Node[] merge(Node right);
+
+    }
+
+    private static final class Leaf extends Node {
+
+	final Object[] elements;
+
+	Leaf(Object[] elements) {
+	    this.elements = elements;
+	}
+
+	@Override
+	int size() {
+	    return elements.length;
+	}
+
+	@Override
+	int width() {
+	    return elements.length;
+	}
+
+	@Override
+	Object first() {
+	    return elements[0];
+	}
+
+	@Override
+	Object get(int index) {
+	    return elements[index];
+	}
+
+	@Override
+	int indexOf(Object e, Comparator<Object> comparator) {
+	    return Arrays.binarySearch(elements, e, comparator);
+	}
+
+	@Override
+	Node[] insert(Object e, Comparator<Object> comparator) {
+
+	    int index = indexOf(e, comparator);
+
+	    if(index >= 0)
+		return null;
+
+	    index = -(index+1);
+
+	    final Object[] result = new Object[elements.length+1];
+
+	    System.arraycopy(elements, 0, result, 0, index);
+	    result[index] = e;
+	    System.arraycopy(elements, index, result, index+1, elements.length-index);
+
+	    return leaves(split(result));
+	}
+
+	@Override
+	Node remove(Object e, Comparator<Object> comparator) {
+
+	    final int index = indexOf(e, comparator);
+
+	    if(index < 0)
+		return this;
+
+	    final Object[] result = new Object[elements.length-1];
+
+	    System.arraycopy(elements, 0, result, 0, index);
+	    System.arraycopy(elements, index+1, result, index, result.length-index);
+
+	    return new Leaf(result);
+	}
+
+	@Override
+	Node[] merge(Node right) {
+	    return leaves(split(concat(elements, ((Leaf) right).elements)));
+	}
+
+	private static Node[] leaves(Object[][] parts) {
+
+	    final Node[] nodes = new Node[parts.length];
+
+	    for(int i = 0;i < parts.length;i++) {
+		nodes[i] = new Leaf(parts[i]);
+	    }
+
+	    return nodes;
+	}
+
+    }
+
+    private static final class Branch extends Node {
+
+	final Node[] children;
+	// offsets[i] is the number of elements in the children before i. The last one is the size of the branch
+	final int[] offsets;
+	// First element of each child
+	final Object[] lows;
+
+	Branch(Node[] children) {
+
+	    this.children = children;
+	    this.offsets = new int[children.length+1];
+	    this.lows = new Object[children.length];
+
+	    for(int i = 0;i < children.length;i++) {
+		offsets[i+1] = offsets[i] + children[i].size();
+		lows[i] = children[i].first();
+	    }
+	}
+
+	@Override
+	int size() {
+	    return offsets[children.length];
+	}
+
+	@Override
+	int width() {
+	    return children.length;
+	}
+
+	@Override
+	Object first() {
+	    return lows[0];
+	}
+
+	@Override
+	Object get(int index) {
+	    final int child = childAt(index);
+	    return children[child].get(index - offsets[child]);
+	}
+
+	// Returns the child that holds the given position
+	int childAt(int index) {
+
+	    int low = 0;
+	    int high = children.length-1;
+
+	    while(low < high) {
+		final int mid = (low+high+1) >>> 1;
+		if(offsets[mid] <= index) {
+		    low = mid;
+		} else {
+		    high = mid-1;
+		}
+	    }
+
+	    return low;
+	}
+
+	// Returns the child where e is, or should be
+	int childFor(Object e, Comparator<Object> comparator) {
+
+	    int low = 0;
+	    int high = children.length-1;
+
+	    while(low < high) {
+		final int mid = (low+high+1) >>> 1;
+		if(comparator.compare(lows[mid], e) <= 0) {
+		    low = mid;
+		} else {
+		    high = mid-1;
+		}
+	    }
+
+	    return low;
+	}
+
+	@Override
+	int indexOf(Object e, Comparator<Object> comparator) {
+
+	    final int child = childFor(e, comparator);
+	    final int index = children[child].indexOf(e, comparator);
+
+	    return index >= 0 ? index + offsets[child] : index - offsets[child];
+	}
+
+	@Override
+	Node[] insert(Object e, Comparator<Object> comparator) {
+
+	    final int child = childFor(e, comparator);
+	    final Node[] nodes = children[child].insert(e, comparator);
+
+	    if(nodes == null)
+		return null;
+
+	    return branches(split(replace(child, 1, nodes)));
+	}
+
+	@Override
+	Node remove(Object e, Comparator<Object> comparator) {
+
+	    final int child = childFor(e, comparator);
+	    final Node node = children[child].remove(e, comparator);
+
+	    if(node == children[child])
+		return this;
+
+	    if(node.size() == 0) {
+		final Object[] result = replace(child, 1, new Node[0]);
+		return result.length == 0 ? EMPTY : new Branch((Node[]) result);
+	    }
+
+	    final Node[] result = (Node[]) replace(child, 1, new Node[] {node});
+
+	    // A node that becomes too small is merged with a sibling
+	    if(node.width() < MIN_WIDTH && result.length > 1) {
+		final int left = child > 0 ? child-1 : child;
+		return new Branch((Node[]) replace(result, left, 2, result[left].merge(result[left+1])));
+	    }
+
+	    return new Branch(result);
+	}
+
+	@Override
+	Node[] merge(Node right) {
+	    return branches(split(concat(children, ((Branch) right).children)));
+	}
+
+	// Returns the children of this branch, replacing count of them from index on with the given nodes
+	private Object[] replace(int index, int count, Node[] nodes) {
+	    return replace(children, index, count, nodes);
+	}
+
+	private static Object[] replace(Node[] children, int index, int count, Node[] nodes) {
+
+	    final Node[] result = new Node[children.length - count + nodes.length];
+
+	    System.arraycopy(children, 0, result, 0, index);
+	    System.arraycopy(nodes, 0, result, index, nodes.length);
+	    System.arraycopy(children, index+count, result, index+nodes.length, children.length-index-count);
+
+	    return result;
+	}
+
+	private static Node[] branches(Object[][] parts) {
+
+	    final Node[] nodes = new Node[parts.length];
+
+	    for(int i = 0;i < parts.length;i++) {
+		// The parts are copies of a Node[], so they are Node[] too
+		nodes[i] = new Branch((Node[]) parts[i]);
+	    }
+
+	    return nodes;
+	}
+
+    }
+
+    /**
+     * Iterates the tree one leaf at a time, so that it only goes down the tree when it leaves the current leaf
+     *
+     * */
+    private abstract class TreeIterator implements Iterator<E> {
+
+	protected int index;
+	// Elements of the current leaf
+	private Object[] elements;
+	// Position in the tree of the first element of the current leaf
+	private int base;
+
+	TreeIterator(int index) {
+	    this.index = index;
+	}
+
+	@SuppressWarnings("unchecked")
+	protected E at(int index) {
+
+	    if(elements == null || index < base || index >= base + elements.length) {
+
+		Node node = root;
+		base = 0;
+
+		while(node instanceof Branch) {
+		    final Branch branch = (Branch) node;
+		    final int child = branch.childAt(index - base);
+		    base += branch.offsets[child];
+		    node = branch.children[child];
+		}
+
+		elements = ((Leaf) node).elements;
+	    }
+
+	    return (E) elements[index - base];
+	}
+
+    }
+
+    private class ForwardIterator extends TreeIterator {
+
+	ForwardIterator() {
+	    super(from);
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return index < to;
+	}
+
+	@Override
+	public E next() {
+	    if(index >= to)
+		throw new NoSuchElementException();
+	    return at(index++);
+	}
+
+    }
+
+    private class BackwardIterator extends TreeIterator {
+
+	BackwardIterator() {
+	    super(to-1);
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return index >= from;
+	}
+
+	@Override
+	public E next() {
+	    if(index < from)
+		throw new NoSuchElementException();
+	    return at(index--);
+	}
+
+    }
+
+}
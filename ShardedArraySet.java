@@ -0,0 +1,821 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+
+/**
+ * A thread safe sorted set that splits its elements into a fixed number of ArraySets (shards) by ranges of
+ * elements, each one with its own lock. Writers of different ranges do not block each other, and each insertion
+ * only shifts the elements of its shard, so the cost of an insertion does not grow with the whole set.
+ *
+ * The ranges are rebalanced automatically: when a shard holds more than skew times the average size of a shard,
+ * all the elements are redistributed evenly. The position of an element and the element at a position are
+ * found through the sizes of the shards before it, and range queries and bulk predicates run on all the shards
+ * involved in parallel.
+ *
+ * Iterators and range queries return a consistent snapshot of the set. It does not allow null elements, and
+ * by default the hash code of the elements is used to sort them, like in ArraySet.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+public class ShardedArraySet<E> implements SortedSet<E> {
+
+    /** FIELDS */
+
+    // A shard is never rebalanced before it reaches this size
+    private static final int MIN_REBALANCE_SIZE = 1024;
+
+    private final ArraySet<E>[] shards;
+    private final ReentrantReadWriteLock[] locks;
+    // Held for reading by every operation, and for writing when the ranges of the shards change
+    private final ReentrantReadWriteLock layout = new ReentrantReadWriteLock();
+    // lowBounds[i] is the lowest element that goes to shard i. lowBounds[0] is not used
+    private final Object[] lowBounds;
+    // Number of shards in use. The rest of them are empty and have no range
+    private int active = 1;
+    // Comparator that performs the sortering job in this set
+    private final Comparator<Object> comparator;
+    // Number of elements in this set
+    private final AtomicInteger size = new AtomicInteger();
+    // How many times bigger than the average a shard can get before it is rebalanced
+    private volatile double skew = 2;
+
+    /** END OF FIELDS */
+
+
+
+    /**
+     * Constructs a new ShardedArraySet with the specified number of shards, that sorts its elements by their
+     * hash codes
+     *
+     * @throws IllegalArgumentException if shards is not greater than zero
+     *
+     * */
+    public ShardedArraySet(int shards) {
+	this(shards, new ArraySet.HashComparator());
+    }
+
+    /**
+     * Constructs a new ShardedArraySet with the specified number of shards and comparator
+     *
+     * @throws IllegalArgumentException if shards is not greater than zero
+     * @throws NullPointerException if the comparator is null
+     *
+     * */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ShardedArraySet(int shards, Comparator<Object> comparator) {
+
+	if(shards <= 0)
+	    throw new IllegalArgumentException("Number of shards must be > 0");
+	if(comparator == null)
+	    throw new NullPointerException("Comparator cannot be null!");
+
+	this.comparator = comparator;
+	this.shards = new ArraySet[shards];
+	this.locks = new ReentrantReadWriteLock[shards];
+	this.lowBounds = new Object[shards];
+
+	for(int i = 0;i < shards;i++) {
+	    this.shards[i] = new ArraySet<>(comparator);
+	    this.locks[i] = new ReentrantReadWriteLock();
+	}
+    }
+
+    @Override
+    public boolean add(E e) {
+
+	final boolean changed;
+	final int shardSize;
+
+	layout.readLock().lock();
+
+	try {
+	    final int shard = shardOf(e);
+	    locks[shard].writeLock().lock();
+	    try {
+		changed = shards[shard].add(e);
+		shardSize = shards[shard].size();
+	    } finally {
+		locks[shard].writeLock().unlock();
+	    }
+	} finally {
+	    layout.readLock().unlock();
+	}
+
+	if(changed && shardSize > rebalanceSize(size.incrementAndGet()))
+	    rebalanceIfSkewed();
+
+	return changed;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> other) {
+	boolean changed = false;
+
+	for(E e : other) {
+	    changed |= add(e);
+	}
+
+	return changed;
+    }
+
+    @Override
+    public boolean remove(Object e) {
+
+	layout.readLock().lock();
+
+	try {
+	    final int shard = shardOf(e);
+	    locks[shard].writeLock().lock();
+	    try {
+		if(!shards[shard].remove(e))
+		    return false;
+	    } finally {
+		locks[shard].writeLock().unlock();
+	    }
+	} finally {
+	    layout.readLock().unlock();
+	}
+
+	size.decrementAndGet();
+	return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> other) {
+	boolean changed = false;
+
+	for(Object e : other) {
+	    changed |= remove(e);
+	}
+
+	return changed;
+    }
+
+    @Override
+    public boolean retainAll(Collection<?> other) {
+	return retainIf(other::contains);
+    }
+
+    @Override
+    public void clear() {
+
+	layout.writeLock().lock();
+
+	try {
+	    for(ArraySet<E> shard : shards) {
+		shard.clear();
+	    }
+	    Arrays.fill(lowBounds, null);
+	    active = 1;
+	    size.set(0);
+	} finally {
+	    layout.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public boolean contains(Object e) {
+
+	layout.readLock().lock();
+
+	try {
+	    final int shard = shardOf(e);
+	    locks[shard].readLock().lock();
+	    try {
+		return shards[shard].contains(e);
+	    } finally {
+		locks[shard].readLock().unlock();
+	    }
+	} finally {
+	    layout.readLock().unlock();
+	}
+    }
+
+    @Override
+    public boolean containsAll(Collection<?> other) {
+
+	for(Object obj : other) {
+	    if(!contains(obj))
+		return false;
+	}
+
+	return true;
+    }
+
+    @Override
+    public int size() {
+	return size.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+	return size.get() == 0;
+    }
+
+    /**
+     * Returns the index of the given object if it is present within the set. Otherwise, this method
+     * will give the position + 1 at which this object should be if it were inside the set as a negative number,
+     * like ArraySet does
+     *
+     * @param {@link Object} the object in question
+     *
+     * @return {@code int} the index of the object passed, or the position at which it should be as a negative number
+     *
+     * */
+    public int indexOf(Object e) {
+
+	lockAll();
+
+	try {
+
+	    final int shard = shardOf(e);
+	    int base = 0;
+
+	    for(int i = 0;i < shard;i++) {
+		base += shards[i].size();
+	    }
+
+	    final int index = shards[shard].indexOf(e);
+
+	    return index >= 0 ? base + index : index - base;
+
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    /**
+     * Returns the element at the specified position
+     *
+     * @param index where the element is
+     *
+     * @return the element at given position
+     *
+     * @throws <code> ArrayIndexOutOfBoundException </code> if the position is out of range
+     *
+     */
+    public E get(int index) {
+
+	lockAll();
+
+	try {
+
+	    int i = index;
+
+	    for(ArraySet<E> shard : shards) {
+		if(i >= 0 && i < shard.size())
+		    return shard.get(i);
+		i -= shard.size();
+	    }
+
+	    throw new ArrayIndexOutOfBoundsException(index + " is out of range [0,"+size()+")");
+
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    @Override
+    public E first() {
+
+	lockAll();
+
+	try {
+	    for(ArraySet<E> shard : shards) {
+		if(!shard.isEmpty())
+		    return shard.first();
+	    }
+	    return null;
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    @Override
+    public E last() {
+
+	lockAll();
+
+	try {
+	    for(int i = shards.length-1;i >= 0;i--) {
+		if(!shards[i].isEmpty())
+		    return shards[i].last();
+	    }
+	    return null;
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    /**
+     * Returns the number of elements of this set in range [from, to)
+     *
+     * @param from the lowest element of the range (inclusive)
+     * @param to the highest element of the range (exclusive)
+     *
+     * @return the number of elements in the range
+     *
+     * */
+    public int countInRange(E from, E to) {
+
+	layout.readLock().lock();
+
+	try {
+
+	    int count = 0;
+
+	    for(int i = shardOf(from), last = shardOf(to);i <= last;i++) {
+		locks[i].readLock().lock();
+		try {
+		    count += shards[i].countInRange(from, to);
+		} finally {
+		    locks[i].readLock().unlock();
+		}
+	    }
+
+	    return count;
+
+	} finally {
+	    layout.readLock().unlock();
+	}
+    }
+
+    /**
+     * Returns an ArraySet with the elements of this set in range [fromElement, toElement). The shards of the range
+     * are scanned in parallel
+     *
+     * */
+    @Override
+    public SortedSet<E> subSet(E fromElement, E toElement) {
+
+	if(comparator.compare(fromElement, toElement) > 0)
+	    throw new IllegalArgumentException(fromElement + " is greater than " + toElement);
+
+	return range(fromElement, toElement);
+    }
+
+    /**
+     * Returns an ArraySet with the elements of this set that are lower than toElement. The shards of the range
+     * are scanned in parallel
+     *
+     * */
+    @Override
+    public SortedSet<E> headSet(E toElement) {
+	return range(null, toElement);
+    }
+
+    /**
+     * Returns an ArraySet with the elements of this set that are greater than or equal to fromElement.
+     * The shards of the range are scanned in parallel
+     *
+     * */
+    @Override
+    public SortedSet<E> tailSet(E fromElement) {
+	return range(fromElement, null);
+    }
+
+    /**
+     * Returns an ArraySet that contains all the elements that meet the condition. The shards are tested in parallel
+     *
+     * @param {@link Predicate} the condition to be tested
+     *
+     * @return {@code ArraySet<E>} an ArraySet containing all the elements that meet the condition,
+     * or an empty ArraySet if any of them do
+     *
+     * */
+    public ArraySet<E> getAll(Predicate<E> condition) {
+
+	lockAll();
+
+	try {
+	    return collect(IntStream.range(0, shards.length).parallel()
+		    .mapToObj(i -> filter(shards[i], 0, shards[i].size(), condition))
+		    .toArray(Object[][]::new));
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    /**
+     * Returns any element that meets the condition. The shards are tested in parallel
+     *
+     * @param {@link Predicate} the condition to be tested
+     *
+     * @return {@code E} an element that meets the condition, or null if any of them does
+     *
+     * */
+    public E getAny(Predicate<E> condition) {
+
+	lockAll();
+
+	try {
+	    return IntStream.range(0, shards.length).parallel()
+		    .mapToObj(i -> shards[i].getAny(condition))
+		    .filter(e -> e != null)
+		    .findAny()
+		    .orElse(null);
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    /**
+     * Only retain those elements that meet the condition passed as argument. The shards are filtered in parallel
+     *
+     * @param {@link Predicate} the condition to be tested
+     *
+     * @return {@code boolean} true if this set has changed after this method, false otherwise
+     *
+     * */
+    public boolean retainIf(Predicate<E> condition) {
+
+	layout.readLock().lock();
+
+	try {
+	    return IntStream.range(0, shards.length).parallel()
+		    .map(i -> retainIf(i, condition))
+		    .sum() > 0;
+	} finally {
+	    layout.readLock().unlock();
+	}
+    }
+
+    // Filters shard i and returns the number of removed elements
+    private int retainIf(int i, Predicate<E> condition) {
+
+	locks[i].writeLock().lock();
+
+	try {
+
+	    final ArraySet<E> shard = shards[i];
+	    final Object[] kept = filter(shard, 0, shard.size(), condition);
+
+	    if(kept.length == shard.size())
+		return 0;
+
+	    final int removed = shard.size() - kept.length;
+
+	    shard.clear();
+	    for(Object e : kept) {
+		@SuppressWarnings("unchecked")
+		final E element = (E) e;
+		shard.add(element);
+	    }
+
+	    size.addAndGet(-removed);
+	    return removed;
+
+	} finally {
+	    locks[i].writeLock().unlock();
+	}
+    }
+
+    /**
+     * Returns the number of shards of this set
+     *
+     * @return the number of shards
+     *
+     * */
+    public int shards() {
+	return shards.length;
+    }
+
+    /**
+     * Returns how many times bigger than the average a shard can get before the set is rebalanced
+     *
+     * @return the skew of this set
+     *
+     * */
+    public double skew() {
+	return skew;
+    }
+
+    /**
+     * Sets how many times bigger than the average a shard can get before the set is rebalanced.
+     * A low skew keeps the shards even, and a high one rebalances less often. It must be greater than one
+     *
+     * */
+    public void setSkew(double skew) {
+	if(skew <= 1) {
+	    throw new IllegalArgumentException("Skew must be > 1");
+	}
+	this.skew = skew;
+    }
+
+    /**
+     * Redistributes the elements evenly among all the shards. It is done automatically when a shard is too big
+     *
+     * */
+    public void rebalance() {
+
+	layout.writeLock().lock();
+
+	try {
+
+	    final Object[] elements = toArray();
+	    final int total = elements.length;
+	    final int perShard = Math.max(1, (total + shards.length - 1) / shards.length);
+
+	    active = 0;
+	    Arrays.fill(lowBounds, null);
+
+	    for(int i = 0;i < shards.length;i++) {
+
+		final int from = Math.min(total, i * perShard);
+		final int to = Math.min(total, from + perShard);
+
+		final ArraySet<E> shard = new ArraySet<>(comparator);
+
+		if(from < to) {
+		    // The elements are sorted, so every add just appends after a single resize
+		    shard.setCapacity(to - from);
+		    for(int j = from;j < to;j++) {
+			@SuppressWarnings("unchecked")
+			final E e = (E) elements[j];
+			shard.add(e);
+		    }
+		    lowBounds[i] = elements[from];
+		    active = i+1;
+		}
+
+		// Grows in steps proportional to its size, so big shards are not copied on every few insertions
+		shard.setCapacity(Math.max(10, (to - from) >>> 3));
+		shards[i] = shard;
+	    }
+
+	    active = Math.max(active, 1);
+
+	} finally {
+	    layout.writeLock().unlock();
+	}
+    }
+
+    // Rebalances the set unless another thread has already done it
+    private void rebalanceIfSkewed() {
+
+	layout.writeLock().lock();
+
+	try {
+	    for(ArraySet<E> shard : shards) {
+		if(shard.size() > rebalanceSize(size.get())) {
+		    rebalance();
+		    return;
+		}
+	    }
+	} finally {
+	    layout.writeLock().unlock();
+	}
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+	return new SnapshotIterator(toArray());
+    }
+
+    /**
+     * Returns an iterator over a snapshot of this set in reversed order
+     *
+     * @return a reverse iterator over the set
+     *
+     * */
+    public Iterator<E> reversedIterator() {
+	final Object[] elements = toArray();
+	for(int i = 0, j = elements.length-1;i < j;i++, j--) {
+	    final Object tmp = elements[i];
+	    elements[i] = elements[j];
+	    elements[j] = tmp;
+	}
+	return new SnapshotIterator(elements);
+    }
+
+    @Override
+    public Comparator<? super E> comparator() {
+	return comparator;
+    }
+
+    @Override
+    public Object[] toArray() {
+
+	lockAll();
+
+	try {
+
+	    int total = 0;
+
+	    // The size of the set may be updated a bit later than the shards
+	    for(ArraySet<E> shard : shards) {
+		total += shard.size();
+	    }
+
+	    final Object[] result = new Object[total];
+	    int n = 0;
+
+	    for(ArraySet<E> shard : shards) {
+		for(int i = 0;i < shard.size();i++) {
+		    result[n++] = shard.get(i);
+		}
+	    }
+
+	    return result;
+
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T[] toArray(T[] a) {
+	final Object[] result = toArray();
+	return (T[]) Arrays.copyOf(result, result.length, a.getClass());
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+
+	if(obj == this)
+	    return true;
+
+	if(!(obj instanceof Set<?>))
+	    return false;
+
+	final Set<?> other = (Set<?>) obj;
+
+	return other.size() == size() && containsAll(other);
+    }
+
+    @Override
+    public int hashCode() {
+	int result = 0;
+
+	for(Object e : toArray()) {
+	    result += e.hashCode();
+	}
+
+	return result;
+    }
+
+    @Override
+    public String toString() {
+	final StringBuilder builder = new StringBuilder("ShardedArraySet[");
+
+	builder.append("size="+size());
+	builder.append(",shards="+shards.length);
+	builder.append("] => ");
+	builder.append(Arrays.toString(toArray()));
+
+	return builder.toString();
+    }
+
+    // The shard where e is, or should be. The caller must hold the layout lock
+    private int shardOf(Object e) {
+
+	int low = 1;
+	int high = active-1;
+
+	while(low <= high) {
+	    final int mid = (low+high) >>> 1;
+	    if(comparator.compare(lowBounds[mid], e) <= 0) {
+		low = mid+1;
+	    } else {
+		high = mid-1;
+	    }
+	}
+
+	return low-1;
+    }
+
+    private int rebalanceSize(int total) {
+	return Math.max(MIN_REBALANCE_SIZE, (int) (skew * total / shards.length));
+    }
+
+    // Locks the layout and all the shards for reading, always in the same order
+    private void lockAll() {
+	layout.readLock().lock();
+	for(ReentrantReadWriteLock lock : locks) {
+	    lock.readLock().lock();
+	}
+    }
+
+    private void unlockAll() {
+	for(int i = locks.length-1;i >= 0;i--) {
+	    locks[i].readLock().unlock();
+	}
+	layout.readLock().unlock();
+    }
+
+    // Elements in range [from, to), where a null bound means no bound
+    private ArraySet<E> range(E from, E to) {
+
+	lockAll();
+
+	try {
+
+	    final int first = from == null ? 0 : shardOf(from);
+	    final int last = to == null ? shards.length-1 : shardOf(to);
+
+	    return collect(IntStream.rangeClosed(first, last).parallel()
+		    .mapToObj(i -> slice(shards[i], from, to))
+		    .toArray(Object[][]::new));
+
+	} finally {
+	    unlockAll();
+	}
+    }
+
+    private Object[] slice(ArraySet<E> shard, E from, E to) {
+
+	final int low = from == null ? 0 : ceiling(shard, from);
+	final int high = to == null ? shard.size() : ceiling(shard, to);
+
+	return filter(shard, low, high, null);
+    }
+
+    private static int ceiling(ArraySet<?> shard, Object e) {
+	final int index = shard.indexOf(e);
+	return index >= 0 ? index : -(index+1);
+    }
+
+    // Elements of the shard in positions [from, to) that meet the condition (all of them if it is null)
+    private static <E> Object[] filter(ArraySet<E> shard, int from, int to, Predicate<E> condition) {
+
+	final Object[] result = new Object[Math.max(0, to - from)];
+	int n = 0;
+
+	for(int i = from;i < to;i++) {
+	    final E e = shard.get(i);
+	    if(condition == null || condition.test(e))
+		result[n++] = e;
+	}
+
+	return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    // Joins the sorted parts of consecutive shards into an ArraySet
+    private ArraySet<E> collect(Object[][] parts) {
+
+	int total = 0;
+
+	for(Object[] part : parts) {
+	    total += part.length;
+	}
+
+	final ArraySet<E> set = new ArraySet<>(comparator);
+	set.setCapacity(Math.max(1, total));
+
+	for(Object[] part : parts) {
+	    for(Object e : part) {
+		@SuppressWarnings("unchecked")
+		final E element = (E) e;
+		set.add(element);
+	    }
+	}
+
+	set.setCapacity(10);
+
+	return set;
+    }
+
+    private class SnapshotIterator implements Iterator<E> {
+
+	private final Object[] elements;
+	private int index = 0;
+	private Object current;
+
+	SnapshotIterator(Object[] elements) {
+	    this.elements = elements;
+	}
+
+	@Override
+	public boolean hasNext() {
+	    return index < elements.length;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E next() {
+	    current = elements[index++];
+	    return (E) current;
+	}
+
+	@Override
+	public void remove() {
+	    if(current == null) {
+		throw new IllegalStateException("¡The iterator has no elements to remove!");
+	    }
+	    ShardedArraySet.this.remove(current);
+	    current = null;
+	}
+
+    }
+
+}
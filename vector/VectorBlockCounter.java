@@ -0,0 +1,50 @@
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+
+/**
+ * Counts the last block of the binary search of the array containers of CompressedIntSet with the Vector API,
+ * comparing as many elements at once as the preferred vector size of the CPU holds. The Vector API is an
+ * incubator module, so this class is kept apart from the rest and compiled with
+ * javac --add-modules jdk.incubator.vector. CompressedIntSet loads it when the JVM is started with
+ * --add-modules jdk.incubator.vector, and uses its scalar loop otherwise.
+ *
+ * @author Cristian Daniel Herrera Herrera
+ *
+ */
+final class VectorBlockCounter implements CompressedIntSet.BlockCounter {
+
+    /** FIELDS */
+
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+    /** END OF FIELDS */
+
+
+
+    @Override
+    public int countLower(char[] values, int from, int to, int x) {
+
+	// x is in range [0, 65536], and only 65536 does not fit in a char, but it is greater than all of them
+	if(x > Character.MAX_VALUE)
+	    return to - from;
+
+	final short key = (short) x;
+	final int bound = from + SPECIES.loopBound(to - from);
+	int count = 0;
+	int i = from;
+
+	// The chars are compared as unsigned shorts
+	for(;i < bound;i += SPECIES.length()) {
+	    count += ShortVector.fromCharArray(SPECIES, values, i).compare(VectorOperators.UNSIGNED_LT, key).trueCount();
+	}
+
+	for(;i < to;i++) {
+	    count += (values[i] - x) >>> 31;
+	}
+
+	return count;
+    }
+
+}